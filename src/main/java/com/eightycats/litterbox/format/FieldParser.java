@@ -0,0 +1,364 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.format;
+
+/**
+ * Parses numbers and timestamps straight out of a range of characters, such as a field in a line
+ * buffer, without creating a String first. Values must fill the range exactly; surrounding
+ * whitespace is an error, the same as it is for Integer.parseInt().
+ */
+public class FieldParser
+{
+    /**
+     * Powers of ten that a double holds exactly.
+     */
+    protected static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+        1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Every integer up to this is exactly representable as a double.
+     */
+    protected static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+    protected static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    public static int parseInt (CharSequence text, int start, int end)
+    {
+        long value = parseLong(text, start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw invalid(text, start, end);
+        }
+        return (int) value;
+    }
+
+    public static long parseLong (CharSequence text, int start, int end)
+    {
+        if (start >= end) {
+            throw invalid(text, start, end);
+        }
+        int pos = start;
+        char first = text.charAt(pos);
+        boolean negative = first == '-';
+        if (negative || first == '+') {
+            if (++pos == end) {
+                throw invalid(text, start, end);
+            }
+        }
+
+        // accumulate negatively, since Long.MIN_VALUE has no positive counterpart
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = text.charAt(pos) - '0';
+            if (digit < 0 || digit > 9 || value < limit / 10) {
+                throw invalid(text, start, end);
+            }
+            value *= 10;
+            if (value < limit + digit) {
+                throw invalid(text, start, end);
+            }
+            value -= digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parses a decimal number, with an optional exponent. Numbers with up to 15 digits and a
+     * power of ten of at most 22 either way, which covers most data, are converted with a single
+     * multiply or divide. Anything else, including NaN and Infinity, is handed to
+     * Double.parseDouble(). Unlike Double.parseDouble(), whitespace around the number is not
+     * allowed.
+     */
+    public static double parseDouble (CharSequence text, int start, int end)
+    {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (text.charAt(pos) == '-' || text.charAt(pos) == '+')) {
+            negative = text.charAt(pos++) == '-';
+        }
+
+        long mantissa = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; pos < end; pos++) {
+            char ch = text.charAt(pos);
+            if (ch >= '0' && ch <= '9') {
+                seenDigit = true;
+                if (mantissa <= (MAX_EXACT_DOUBLE - 9) / 10) {
+                    mantissa = mantissa * 10 + (ch - '0');
+                    if (seenPoint) {
+                        scale--;
+                    }
+                } else {
+                    // too many digits to be exact
+                    return parseSlowly(text, start, end);
+                }
+            } else if (ch == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+
+        if (pos < end && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E') && seenDigit) {
+            if (++pos == end) {
+                throw invalid(text, start, end);
+            }
+            boolean negativeExponent = text.charAt(pos) == '-';
+            if (negativeExponent || text.charAt(pos) == '+') {
+                pos++;
+            }
+            int exponent = 0;
+            int exponentStart = pos;
+            for (; pos < end; pos++) {
+                int digit = text.charAt(pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                if (exponent < 10000) {
+                    exponent = exponent * 10 + digit;
+                }
+            }
+            if (pos == exponentStart) {
+                throw invalid(text, start, end);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        if (pos != end || !seenDigit) {
+            return parseSlowly(text, start, end);
+        }
+
+        // both the mantissa and the power of ten are exact, so one operation rounds correctly
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (scale >= 0 && scale < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[scale];
+        } else if (scale < 0 && -scale < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-scale];
+        } else {
+            return parseSlowly(text, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number as a fixed point value with the given number of decimal places,
+     * so "12.345" with a scale of 2 is 1235. Extra decimal places are rounded half up. Exponents
+     * are not allowed.
+     */
+    public static long parseFixed (CharSequence text, int start, int end, int scale)
+    {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (text.charAt(pos) == '-' || text.charAt(pos) == '+')) {
+            negative = text.charAt(pos++) == '-';
+        }
+
+        long value = 0;
+        int places = -1;
+        boolean seenDigit = false;
+        boolean roundUp = false;
+        for (; pos < end; pos++) {
+            char ch = text.charAt(pos);
+            if (ch == '.' && places < 0) {
+                places = 0;
+                continue;
+            }
+            int digit = ch - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalid(text, start, end);
+            }
+            seenDigit = true;
+            if (places >= scale) {
+                // only the first extra place matters for rounding
+                if (places == scale) {
+                    roundUp = digit >= 5;
+                }
+                places++;
+                continue;
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw invalid(text, start, end);
+            }
+            value = value * 10 + digit;
+            if (places >= 0) {
+                places++;
+            }
+        }
+        if (!seenDigit) {
+            throw invalid(text, start, end);
+        }
+
+        for (int i = Math.max(places, 0); i < scale; i++) {
+            if (value > Long.MAX_VALUE / 10) {
+                throw invalid(text, start, end);
+            }
+            value *= 10;
+        }
+        if (roundUp) {
+            value++;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses an ISO 8601 date or date and time, and returns it as milliseconds since the epoch.
+     * Accepts "yyyy-MM-dd", optionally followed by a "T" or a space and "HH:mm", "HH:mm:ss" or
+     * "HH:mm:ss.fraction", and then optionally a zone of "Z", "+HH", "+HHmm" or "+HH:mm". Times
+     * without a zone are taken to be UTC.
+     */
+    public static long parseTimestamp (CharSequence text, int start, int end)
+    {
+        int length = end - start;
+        if (length < 10 || text.charAt(start + 4) != '-' || text.charAt(start + 7) != '-') {
+            throw invalidTimestamp(text, start, end);
+        }
+        int year = digits(text, start, 4, end);
+        int month = digits(text, start + 5, 2, end);
+        int day = digits(text, start + 8, 2, end);
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw invalidTimestamp(text, start, end);
+        }
+        long millis = daysSinceEpoch(year, month, day) * MILLIS_PER_DAY;
+
+        int pos = start + 10;
+        if (pos < end && (text.charAt(pos) == 'T' || text.charAt(pos) == ' ')) {
+            if (pos + 6 > end || text.charAt(pos + 3) != ':') {
+                throw invalidTimestamp(text, start, end);
+            }
+            int hour = digits(text, pos + 1, 2, end);
+            int minute = digits(text, pos + 4, 2, end);
+            int second = 0;
+            int fraction = 0;
+            pos += 6;
+            if (pos < end && text.charAt(pos) == ':') {
+                second = digits(text, pos + 1, 2, end);
+                pos += 3;
+                if (pos < end && (text.charAt(pos) == '.' || text.charAt(pos) == ',')) {
+                    // keep milliseconds and drop anything finer
+                    int scale = 100;
+                    int fractionStart = ++pos;
+                    while (pos < end && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+                        fraction += (text.charAt(pos++) - '0') * scale;
+                        scale /= 10;
+                    }
+                    if (pos == fractionStart) {
+                        throw invalidTimestamp(text, start, end);
+                    }
+                }
+            }
+            if (hour > 23 || minute > 59 || second > 60) {
+                throw invalidTimestamp(text, start, end);
+            }
+            millis += ((hour * 60L + minute) * 60 + second) * 1000 + fraction;
+
+            if (pos < end) {
+                char zone = text.charAt(pos);
+                if (zone == 'Z' && pos + 1 == end) {
+                    pos++;
+                } else if ((zone == '+' || zone == '-') && pos + 3 <= end) {
+                    int offset = digits(text, pos + 1, 2, end) * 60;
+                    pos += 3;
+                    if (pos < end && text.charAt(pos) == ':') {
+                        pos++;
+                    }
+                    if (pos < end) {
+                        offset += digits(text, pos, 2, end);
+                        pos += 2;
+                    }
+                    // local time minus the offset gives UTC
+                    millis -= (zone == '+' ? offset : -offset) * 60000L;
+                }
+            }
+        }
+
+        if (pos != end) {
+            throw invalidTimestamp(text, start, end);
+        }
+        return millis;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date in the proleptic Gregorian
+     * calendar.
+     */
+    public static long daysSinceEpoch (int year, int month, int day)
+    {
+        // count years from March, so that the leap day comes at the end of the year
+        long y = (month <= 2) ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    protected static int daysInMonth (int year, int month)
+    {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * Reads a fixed number of digits.
+     */
+    protected static int digits (CharSequence text, int pos, int count, int end)
+    {
+        if (pos + count > end) {
+            throw invalidTimestamp(text, pos, end);
+        }
+        int value = 0;
+        for (int i = pos; i < pos + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalidTimestamp(text, pos, end);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Hands the text to Double.parseDouble(), which would otherwise quietly trim off any
+     * whitespace around the number.
+     */
+    protected static double parseSlowly (CharSequence text, int start, int end)
+    {
+        if (start < end && (text.charAt(start) <= ' ' || text.charAt(end - 1) <= ' ')) {
+            throw invalid(text, start, end);
+        }
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+
+    protected static NumberFormatException invalid (CharSequence text, int start, int end)
+    {
+        return new NumberFormatException("For input string: \""
+            + text.subSequence(start, end) + "\"");
+    }
+
+    protected static IllegalArgumentException invalidTimestamp (CharSequence text, int start,
+        int end)
+    {
+        return new IllegalArgumentException("Invalid timestamp: \""
+            + text.subSequence(start, end) + "\"");
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of reusable byte buffers in power-of-two sizes between MIN_SIZE and MAX_SIZE. Buffers are
+ * handed out by acquire() and should be given back with release() when the caller is done.
+ */
+public class BufferPool
+{
+    public static final int MIN_SIZE = 64 * 1024;
+
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * The most idle buffers kept for each size.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    protected static final BufferPool DEFAULT = new BufferPool(DEFAULT_CAPACITY);
+
+    protected List<BlockingQueue<byte[]>> _pools = new ArrayList<BlockingQueue<byte[]>>();
+
+    public BufferPool (int capacity)
+    {
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            _pools.add(new ArrayBlockingQueue<byte[]>(capacity));
+        }
+    }
+
+    /**
+     * Returns the shared pool.
+     */
+    public static BufferPool getDefault ()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Rounds an expected transfer size up to the nearest pooled buffer size.
+     */
+    public static int sizeFor (long expected)
+    {
+        int size = MIN_SIZE;
+        while (size < expected && size < MAX_SIZE) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Returns a buffer of at least sizeFor(size) bytes, reusing an idle one when possible.
+     */
+    public byte[] acquire (long size)
+    {
+        int bufferSize = sizeFor(size);
+        byte[] buffer = _pools.get(indexOf(bufferSize)).poll();
+        return (buffer != null) ? buffer : new byte[bufferSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers that are not one of the pooled sizes, or that
+     * arrive when the pool is full, are left to the garbage collector.
+     */
+    public void release (byte[] buffer)
+    {
+        if (buffer == null || buffer.length != sizeFor(buffer.length)) {
+            return;
+        }
+        _pools.get(indexOf(buffer.length)).offer(buffer);
+    }
+
+    protected int indexOf (int bufferSize)
+    {
+        return Integer.numberOfTrailingZeros(bufferSize) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+}
@@ -14,15 +14,24 @@
 
 package com.eightycats.litterbox.io;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import com.eightycats.litterbox.logging.*;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class StreamUtils
 {
-    protected static final int BUFFER_SIZE = 1024;
+    /**
+     * The number of reads in a row that must fill the buffer before a bigger one is used.
+     */
+    protected static final int GROW_AFTER = 4;
 
     /**
      * Flush and close an output stream quietly. Any exceptions thrown by the close are ignored.
@@ -69,20 +78,271 @@ public class StreamUtils
         }
     }
 
+    /**
+     * Copies everything from input to output and returns the number of bytes copied.
+     */
     public static long copy (InputStream input, OutputStream output) throws IOException
     {
-        long totalBytes = 0;
+        return copy(input, output, null);
+    }
 
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int byteCount = input.read(buffer);
+    /**
+     * Copies everything from input to output, recording the byte count and elapsed time in stats
+     * (which may be null). Plain file streams are copied channel to channel; anything else goes
+     * through a pooled buffer that grows while the input keeps filling it.
+     */
+    public static long copy (InputStream input, OutputStream output, TransferStats stats)
+        throws IOException
+    {
+        if (stats != null) {
+            stats.start();
+        }
+        try {
+            long totalBytes = 0;
+            if (input.getClass() == FileInputStream.class
+                && output.getClass() == FileOutputStream.class) {
+                totalBytes = copy(((FileInputStream) input).getChannel(),
+                    ((FileOutputStream) output).getChannel(), stats);
+            }
+            // this also picks up anything a channel transfer could not see, such as a pipe
+            return totalBytes + copyBuffered(input, output, stats);
+        } finally {
+            if (stats != null) {
+                stats.stop();
+            }
+        }
+    }
 
-        while (byteCount > -1) {
-            output.write(buffer, 0, byteCount);
-            totalBytes += byteCount;
-            byteCount = input.read(buffer);
+    /**
+     * Like copy(), but reads on a second thread so that reading the next buffer overlaps with
+     * writing the previous one. This pays off when both ends are slow devices.
+     */
+    public static long copyOverlapped (InputStream input, OutputStream output,
+        TransferStats stats)
+        throws IOException
+    {
+        if (stats != null) {
+            stats.start();
         }
+        try {
+            return new OverlappedCopy(input, output, stats).copy();
+        } finally {
+            if (stats != null) {
+                stats.stop();
+            }
+        }
+    }
 
+    /**
+     * Transfers the rest of a file channel to another channel, leaving the source positioned
+     * where the transfer stopped.
+     */
+    protected static long copy (FileChannel input, FileChannel output, TransferStats stats)
+        throws IOException
+    {
+        long start = input.position();
+        long position = start;
+        long size = input.size();
+        while (position < size) {
+            long count = input.transferTo(position, size - position, output);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            if (stats != null) {
+                stats.addBytes(count);
+            }
+        }
+        input.position(position);
+        return position - start;
+    }
+
+    protected static long copyBuffered (InputStream input, OutputStream output,
+        TransferStats stats)
+        throws IOException
+    {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquire(input.available());
+        long totalBytes = 0;
+        int fullReads = 0;
+        try {
+            int byteCount = input.read(buffer);
+            while (byteCount > -1) {
+                output.write(buffer, 0, byteCount);
+                totalBytes += byteCount;
+                if (stats != null) {
+                    stats.addBytes(byteCount);
+                }
+
+                // a source that keeps filling the buffer gets a bigger one
+                if (byteCount == buffer.length && buffer.length < BufferPool.MAX_SIZE) {
+                    if (++fullReads == GROW_AFTER) {
+                        byte[] bigger = pool.acquire(buffer.length * 2);
+                        pool.release(buffer);
+                        buffer = bigger;
+                        fullReads = 0;
+                    }
+                } else {
+                    fullReads = 0;
+                }
+                byteCount = input.read(buffer);
+            }
+        } finally {
+            pool.release(buffer);
+        }
         return totalBytes;
     }
 
+    /**
+     * Double-buffered copy: a reader thread fills buffers and queues them for the calling thread
+     * to write.
+     */
+    protected static class OverlappedCopy
+        implements Runnable
+    {
+        /**
+         * How long to wait for the reader thread to stop after the copy ends, in milliseconds.
+         */
+        protected static final long JOIN_TIMEOUT = 1000;
+
+        protected InputStream _input;
+
+        protected OutputStream _output;
+
+        protected TransferStats _stats;
+
+        protected BlockingQueue<Chunk> _empty = new ArrayBlockingQueue<Chunk>(2);
+
+        protected BlockingQueue<Chunk> _full = new ArrayBlockingQueue<Chunk>(2);
+
+        protected volatile boolean _cancelled;
+
+        protected IOException _error;
+
+        public OverlappedCopy (InputStream input, OutputStream output, TransferStats stats)
+        {
+            _input = input;
+            _output = output;
+            _stats = stats;
+        }
+
+        public long copy () throws IOException
+        {
+            BufferPool pool = BufferPool.getDefault();
+            int size = BufferPool.sizeFor(_input.available());
+            Chunk first = new Chunk(pool.acquire(size));
+            Chunk second = new Chunk(pool.acquire(size));
+            _empty.add(first);
+            _empty.add(second);
+
+            Thread reader = new Thread(this, "StreamUtils-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            long totalBytes = 0;
+            try {
+                Chunk chunk = take(_full);
+                while (chunk.length > -1) {
+                    _output.write(chunk.data, 0, chunk.length);
+                    totalBytes += chunk.length;
+                    if (_stats != null) {
+                        _stats.addBytes(chunk.length);
+                    }
+                    _empty.add(chunk);
+                    chunk = take(_full);
+                }
+            } finally {
+                _cancelled = true;
+                reader.interrupt();
+                // the reader can be stuck in a read that ignores interrupts, in which case it
+                // still owns a buffer and we leave both to the garbage collector
+                if (join(reader, JOIN_TIMEOUT)) {
+                    pool.release(first.data);
+                    pool.release(second.data);
+                }
+            }
+            if (_error != null) {
+                throw _error;
+            }
+            return totalBytes;
+        }
+
+        @Override
+        public void run ()
+        {
+            Chunk chunk = null;
+            try {
+                while (!_cancelled) {
+                    chunk = take(_empty);
+                    chunk.length = _input.read(chunk.data);
+                    _full.add(chunk);
+                    if (chunk.length < 0) {
+                        return;
+                    }
+                }
+            } catch (IOException ex) {
+                fail(chunk, ex);
+            } catch (RuntimeException ex) {
+                fail(chunk, new IOException(ex));
+            }
+        }
+
+        protected void fail (Chunk chunk, IOException error)
+        {
+            if (!_cancelled) {
+                _error = error;
+                if (chunk == null) {
+                    // failed before getting a buffer
+                    chunk = new Chunk(null);
+                }
+                chunk.length = -1;
+                _full.add(chunk);
+            }
+        }
+
+        protected static Chunk take (BlockingQueue<Chunk> queue) throws IOException
+        {
+            try {
+                return queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Waits up to the given number of milliseconds for the thread to finish, and returns true
+         * if it did.
+         */
+        protected static boolean join (Thread thread, long timeout)
+        {
+            boolean interrupted = false;
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (thread.isAlive() && remaining > 0) {
+                try {
+                    thread.join(remaining);
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return !thread.isAlive();
+        }
+    }
+
+    protected static class Chunk
+    {
+        public byte[] data;
+
+        public int length;
+
+        public Chunk (byte[] data)
+        {
+            this.data = data;
+        }
+    }
 }
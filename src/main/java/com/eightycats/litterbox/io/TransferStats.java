@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the files and bytes moved by a copy, along with how long it took. The counters are
+ * thread safe, so one instance can be shared by several worker threads.
+ */
+public class TransferStats
+{
+    protected AtomicLong _bytes = new AtomicLong();
+
+    protected AtomicLong _files = new AtomicLong();
+
+    protected volatile long _startTime;
+
+    protected volatile long _endTime;
+
+    /**
+     * Starts (or restarts) the clock and resets the counters.
+     */
+    public void start ()
+    {
+        _bytes.set(0);
+        _files.set(0);
+        _endTime = 0;
+        _startTime = System.nanoTime();
+    }
+
+    /**
+     * Stops the clock.
+     */
+    public void stop ()
+    {
+        _endTime = System.nanoTime();
+    }
+
+    public void addBytes (long bytes)
+    {
+        _bytes.addAndGet(bytes);
+    }
+
+    /**
+     * Counts one more file, of the given size.
+     */
+    public void addFile (long bytes)
+    {
+        _files.incrementAndGet();
+        _bytes.addAndGet(bytes);
+    }
+
+    public long getBytes ()
+    {
+        return _bytes.get();
+    }
+
+    public long getFiles ()
+    {
+        return _files.get();
+    }
+
+    /**
+     * Returns the time between start() and stop(), or until now if we haven't stopped yet.
+     */
+    public long getElapsedMillis ()
+    {
+        long end = _endTime != 0 ? _endTime : System.nanoTime();
+        return (end - _startTime) / 1000000;
+    }
+
+    public double getBytesPerSecond ()
+    {
+        return perSecond(getBytes());
+    }
+
+    public double getFilesPerSecond ()
+    {
+        return perSecond(getFiles());
+    }
+
+    protected double perSecond (long count)
+    {
+        long end = _endTime != 0 ? _endTime : System.nanoTime();
+        long nanos = Math.max(1, end - _startTime);
+        return count * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format("%d files, %d bytes in %d ms (%.1f files/s, %.1f MB/s)", getFiles(),
+            getBytes(), getElapsedMillis(), getFilesPerSecond(),
+            getBytesPerSecond() / (1024 * 1024));
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The block offsets of a block gzipped (BGZF) file. Each entry holds the file offset where a
+ * block starts and the offset of its first byte in the uncompressed data. The first entry is
+ * always (0, 0).
+ * <p>
+ * Indexes are saved next to the data file with a ".gzi" extension, in the same format used by
+ * htslib: a little endian count followed by that many offset pairs, leaving out the first.
+ */
+public class BlockGZipIndex
+{
+    public static final String EXTENSION = ".gzi";
+
+    /**
+     * The length of a BGZF block header.
+     */
+    public static final int HEADER_SIZE = 18;
+
+    protected long[] _compressed = new long[64];
+
+    protected long[] _uncompressed = new long[64];
+
+    protected int _size;
+
+    /**
+     * The total size of the uncompressed data, if known.
+     */
+    protected long _uncompressedLength = -1;
+
+    public BlockGZipIndex ()
+    {
+        add(0, 0);
+    }
+
+    /**
+     * Adds the start of the next block. Blocks must be added in order.
+     */
+    public void add (long compressedOffset, long uncompressedOffset)
+    {
+        if (_size > 0 && _compressed[_size - 1] == compressedOffset) {
+            return;
+        }
+        if (_size == _compressed.length) {
+            _compressed = Arrays.copyOf(_compressed, _size * 2);
+            _uncompressed = Arrays.copyOf(_uncompressed, _size * 2);
+        }
+        _compressed[_size] = compressedOffset;
+        _uncompressed[_size] = uncompressedOffset;
+        _size++;
+    }
+
+    public int size ()
+    {
+        return _size;
+    }
+
+    public long getCompressedOffset (int block)
+    {
+        return _compressed[block];
+    }
+
+    public long getUncompressedOffset (int block)
+    {
+        return _uncompressed[block];
+    }
+
+    /**
+     * Returns the total size of the uncompressed data for indexes created by build(), or -1.
+     */
+    public long getUncompressedLength ()
+    {
+        return _uncompressedLength;
+    }
+
+    /**
+     * Returns the last block that starts at or before the given uncompressed offset.
+     */
+    public int findBlock (long uncompressedOffset)
+    {
+        int low = 0;
+        int high = _size - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (_uncompressed[middle] <= uncompressedOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    public void save (File indexFile)
+        throws IOException
+    {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(indexFile));
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(_size - 1);
+            output.write(buffer.array(), 0, 8);
+            for (int i = 1; i < _size; i++) {
+                buffer.clear();
+                buffer.putLong(_compressed[i]);
+                buffer.putLong(_uncompressed[i]);
+                output.write(buffer.array());
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    public static BlockGZipIndex load (File indexFile)
+        throws IOException
+    {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(indexFile)));
+        try {
+            byte[] bytes = new byte[16];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            input.readFully(bytes, 0, 8);
+            long count = buffer.getLong(0);
+            BlockGZipIndex index = new BlockGZipIndex();
+            for (long i = 0; i < count; i++) {
+                input.readFully(bytes);
+                index.add(buffer.getLong(0), buffer.getLong(8));
+            }
+            return index;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Builds an index by walking the block headers of a BGZF file. Only the headers and the
+     * trailing sizes are read, nothing is inflated.
+     */
+    public static BlockGZipIndex build (File file)
+        throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            BlockGZipIndex index = new BlockGZipIndex();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long compressed = 0;
+            long uncompressed = 0;
+            while (compressed < size) {
+                index.add(compressed, uncompressed);
+                readFully(channel, buffer, compressed, HEADER_SIZE);
+                int blockSize = getBlockSize(buffer.array(), 0);
+                if (blockSize < 0) {
+                    throw new IOException("Bad block header at offset " + compressed + " of "
+                        + file.getPath());
+                }
+                readFully(channel, buffer, compressed + blockSize - 4, 4);
+                uncompressed += buffer.getInt(0) & 0xFFFFFFFFL;
+                compressed += blockSize;
+            }
+            index._uncompressedLength = uncompressed;
+            return index;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the saved index for the given BGZF file if it is up to date, or else builds one
+     * from the file's block headers.
+     */
+    public static BlockGZipIndex forFile (File file)
+        throws IOException
+    {
+        File indexFile = getIndexFile(file);
+        if (indexFile.exists() && indexFile.lastModified() >= file.lastModified()) {
+            return load(indexFile);
+        }
+        return build(file);
+    }
+
+    public static File getIndexFile (File file)
+    {
+        return new File(file.getPath() + EXTENSION);
+    }
+
+    /**
+     * Checks whether the given file starts with a BGZF block header.
+     */
+    public static boolean isBlockGZip (File file)
+        throws IOException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        InputStream input = new FileInputStream(file);
+        try {
+            int count = 0;
+            while (count < header.length) {
+                int read = input.read(header, count, header.length - count);
+                if (read < 0) {
+                    return false;
+                }
+                count += read;
+            }
+        } finally {
+            input.close();
+        }
+        return getBlockSize(header, 0) > 0;
+    }
+
+    /**
+     * Reads the total size of the block whose header starts at the given offset, or returns -1
+     * if it is not a BGZF block header.
+     */
+    public static int getBlockSize (byte[] header, int offset)
+    {
+        if ((header[offset] & 0xFF) != 0x1f || (header[offset + 1] & 0xFF) != 0x8b
+            || header[offset + 2] != 8 || (header[offset + 3] & 4) == 0
+            || header[offset + 10] != 6 || header[offset + 11] != 0
+            || header[offset + 12] != 'B' || header[offset + 13] != 'C'
+            || header[offset + 14] != 2 || header[offset + 15] != 0) {
+            return -1;
+        }
+        return ((header[offset + 16] & 0xFF) | (header[offset + 17] & 0xFF) << 8) + 1;
+    }
+
+    /**
+     * Reads exactly the given number of bytes at the given file offset into the buffer.
+     */
+    protected static void readFully (FileChannel channel, ByteBuffer buffer, long position,
+        int length)
+        throws IOException
+    {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0) {
+                throw new EOFException("Unexpected end of block gzip data at offset "
+                    + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+}
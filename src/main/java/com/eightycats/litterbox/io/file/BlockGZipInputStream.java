@@ -0,0 +1,283 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.eightycats.litterbox.util.DaemonThreadFactory;
+
+/**
+ * Reads a block gzipped (BGZF) file, inflating several blocks ahead of the reader on a pool of
+ * threads. The calling thread only reads the compressed blocks from disk, so decompression
+ * scales with the number of threads. Supports seeking to any uncompressed offset using the
+ * file's {@link BlockGZipIndex}.
+ */
+public class BlockGZipInputStream extends InputStream
+{
+    protected File _file;
+
+    protected RandomAccessFile _input;
+
+    protected FileChannel _channel;
+
+    protected ExecutorService _executor;
+
+    /**
+     * The most blocks being inflated at once.
+     */
+    protected int _window;
+
+    protected ArrayDeque<Future<byte[]>> _pending = new ArrayDeque<Future<byte[]>>();
+
+    /**
+     * The file offset of the next block to hand to the workers.
+     */
+    protected long _nextBlock;
+
+    protected byte[] _current = new byte[0];
+
+    protected int _position;
+
+    protected BlockGZipIndex _index;
+
+    public BlockGZipInputStream (File file)
+        throws IOException
+    {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockGZipInputStream (File file, int threads)
+        throws IOException
+    {
+        _file = file;
+        _input = new RandomAccessFile(file, "r");
+        _channel = _input.getChannel();
+        // daemon threads, so that a stream that is never closed does not keep the JVM running
+        _executor = Executors.newFixedThreadPool(threads,
+            new DaemonThreadFactory("BlockGZipInputStream"));
+        _window = threads * 2;
+    }
+
+    @Override
+    public int read ()
+        throws IOException
+    {
+        if (!fill()) {
+            return -1;
+        }
+        return _current[_position++] & 0xFF;
+    }
+
+    @Override
+    public int read (byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, _current.length - _position);
+        System.arraycopy(_current, _position, bytes, offset, count);
+        _position += count;
+        return count;
+    }
+
+    @Override
+    public int available ()
+    {
+        return _current.length - _position;
+    }
+
+    /**
+     * Moves to the given offset in the uncompressed data.
+     */
+    public void seek (long offset)
+        throws IOException
+    {
+        BlockGZipIndex index = getIndex();
+        int block = index.findBlock(offset);
+        seekBlock(block);
+        long skip = offset - index.getUncompressedOffset(block);
+        while (skip > 0 && fill()) {
+            int count = (int) Math.min(skip, _current.length - _position);
+            _position += count;
+            skip -= count;
+        }
+    }
+
+    /**
+     * Moves to the start of the given block of the index.
+     */
+    public void seekBlock (int block)
+        throws IOException
+    {
+        for (Future<byte[]> future : _pending) {
+            future.cancel(true);
+        }
+        _pending.clear();
+        _current = new byte[0];
+        _position = 0;
+        _nextBlock = getIndex().getCompressedOffset(block);
+    }
+
+    /**
+     * Returns the block index, loading or building it the first time it is needed.
+     */
+    public BlockGZipIndex getIndex ()
+        throws IOException
+    {
+        if (_index == null) {
+            _index = BlockGZipIndex.forFile(_file);
+        }
+        return _index;
+    }
+
+    @Override
+    public void close ()
+        throws IOException
+    {
+        _executor.shutdownNow();
+        _input.close();
+    }
+
+    /**
+     * Makes sure there is unread data in the current block, moving on to the next blocks as
+     * needed. Returns false at the end of the file.
+     */
+    protected boolean fill ()
+        throws IOException
+    {
+        while (_position >= _current.length) {
+            submit();
+            if (_pending.isEmpty()) {
+                return false;
+            }
+            try {
+                _current = _pending.removeFirst().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+            _position = 0;
+        }
+        submit();
+        return true;
+    }
+
+    /**
+     * Reads compressed blocks and queues them for inflating until the window is full.
+     */
+    protected void submit ()
+        throws IOException
+    {
+        long size = _channel.size();
+        ByteBuffer header = ByteBuffer.allocate(BlockGZipIndex.HEADER_SIZE);
+        while (_pending.size() < _window && _nextBlock < size) {
+            BlockGZipIndex.readFully(_channel, header, _nextBlock, header.capacity());
+            int blockSize = BlockGZipIndex.getBlockSize(header.array(), 0);
+            if (blockSize < 0) {
+                throw new ZipException("Bad block header at offset " + _nextBlock + " of "
+                    + _file.getPath());
+            }
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            BlockGZipIndex.readFully(_channel, block, _nextBlock, blockSize);
+            _pending.addLast(_executor.submit(new Inflate(block.array(), _nextBlock)));
+            _nextBlock += blockSize;
+        }
+    }
+
+    /**
+     * Inflates one block and checks it against its CRC.
+     */
+    protected class Inflate
+        implements Callable<byte[]>
+    {
+        protected byte[] _block;
+
+        protected long _offset;
+
+        public Inflate (byte[] block, long offset)
+        {
+            _block = block;
+            _offset = offset;
+        }
+
+        @Override
+        public byte[] call ()
+            throws IOException
+        {
+            int length = _block.length;
+            int size = (_block[length - 4] & 0xFF) | (_block[length - 3] & 0xFF) << 8
+                | (_block[length - 2] & 0xFF) << 16 | (_block[length - 1] & 0xFF) << 24;
+            int crc = (_block[length - 8] & 0xFF) | (_block[length - 7] & 0xFF) << 8
+                | (_block[length - 6] & 0xFF) << 16 | (_block[length - 5] & 0xFF) << 24;
+
+            byte[] data = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(_block, BlockGZipIndex.HEADER_SIZE,
+                    length - BlockGZipIndex.HEADER_SIZE - BlockGZipOutputStream.TRAILER_SIZE);
+                int count = 0;
+                while (count < size && !inflater.finished()) {
+                    int inflated = inflater.inflate(data, count, size - count);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    count += inflated;
+                }
+                if (count != size) {
+                    throw new ZipException("Truncated block at offset " + _offset + " of "
+                        + _file.getPath());
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Corrupt block at offset " + _offset + " of "
+                    + _file.getPath() + ": " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 check = new CRC32();
+            check.update(data, 0, size);
+            if ((int) check.getValue() != crc) {
+                throw new ZipException("CRC mismatch in block at offset " + _offset + " of "
+                    + _file.getPath());
+            }
+            return data;
+        }
+    }
+}
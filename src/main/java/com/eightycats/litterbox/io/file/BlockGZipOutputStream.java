@@ -0,0 +1,406 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.eightycats.litterbox.util.DaemonThreadFactory;
+
+/**
+ * Writes block gzipped (BGZF) data. The output is a series of gzip members, each holding at most
+ * BLOCK_SIZE bytes of data and recording its own compressed size in a "BC" extra field, followed
+ * by an empty end-of-file block. Any gzip reader can read the result, while
+ * {@link BlockGZipInputStream} can also inflate the blocks in parallel and seek to any of them.
+ * <p>
+ * Since every block is compressed on its own, blocks can be deflated on several threads at once.
+ * With more than one thread, the writing thread only fills blocks and writes out the compressed
+ * ones in order.
+ */
+public class BlockGZipOutputStream extends OutputStream
+{
+    /**
+     * The most uncompressed bytes in one block.
+     */
+    public static final int BLOCK_SIZE = 0xff00;
+
+    /**
+     * The most bytes one compressed block may take up, header and trailer included.
+     */
+    public static final int MAX_BLOCK_SIZE = 0x10000;
+
+    protected static final int TRAILER_SIZE = 8;
+
+    protected OutputStream _out;
+
+    protected int _level;
+
+    protected Block _current = new Block();
+
+    protected long _compressedOffset;
+
+    protected long _uncompressedOffset;
+
+    protected BlockGZipIndex _index = new BlockGZipIndex();
+
+    /**
+     * Where to save the block index when the stream is closed, if anywhere.
+     */
+    protected File _indexFile;
+
+    protected boolean _closed;
+
+    /**
+     * Compresses blocks when there is more than one thread, otherwise null.
+     */
+    protected ExecutorService _executor;
+
+    /**
+     * The most blocks being compressed at once.
+     */
+    protected int _window;
+
+    /**
+     * Blocks being compressed, in the order they will be written.
+     */
+    protected ArrayDeque<Block> _pending = new ArrayDeque<Block>();
+
+    /**
+     * Written blocks whose buffers can be reused.
+     */
+    protected ArrayDeque<Block> _free = new ArrayDeque<Block>();
+
+    protected ThreadLocal<Deflater> _threadDeflater = new ThreadLocal<Deflater>();
+
+    /**
+     * Every deflater created, so that they can all be released on close.
+     */
+    protected List<Deflater> _deflaters = new ArrayList<Deflater>();
+
+    public BlockGZipOutputStream (OutputStream out)
+    {
+        this(out, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * Writes to the given stream, compressing blocks at the given level on the given number of
+     * threads.
+     */
+    public BlockGZipOutputStream (OutputStream out, int level, int threads)
+    {
+        _out = out;
+        _level = level;
+        if (threads > 1) {
+            _executor = Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory("BlockGZipOutputStream"));
+            _window = threads * 2;
+        }
+    }
+
+    /**
+     * Writes to the given file, and saves its block index next to it when closed.
+     */
+    public BlockGZipOutputStream (File file)
+        throws IOException
+    {
+        this(file, 1);
+    }
+
+    /**
+     * Writes to the given file using the given number of compression threads, and saves its
+     * block index next to it when closed.
+     */
+    public BlockGZipOutputStream (File file, int threads)
+        throws IOException
+    {
+        this(file, threads, false);
+    }
+
+    /**
+     * Writes to the given file, appending new blocks to the blocks already there if append is
+     * true. The block index is saved next to the file when closed.
+     */
+    public BlockGZipOutputStream (File file, int threads, boolean append)
+        throws IOException
+    {
+        this(new FileOutputStream(file, append), Deflater.DEFAULT_COMPRESSION, threads);
+        _indexFile = BlockGZipIndex.getIndexFile(file);
+        if (append && file.length() > 0) {
+            _index = BlockGZipIndex.build(file);
+            _compressedOffset = file.length();
+            _uncompressedOffset = _index.getUncompressedLength();
+        }
+    }
+
+    /**
+     * Returns the offsets of the blocks written so far.
+     */
+    public BlockGZipIndex getIndex ()
+    {
+        return _index;
+    }
+
+    @Override
+    public void write (int b)
+        throws IOException
+    {
+        if (_current.length == BLOCK_SIZE) {
+            writeBlock();
+        }
+        _current.data[_current.length++] = (byte) b;
+    }
+
+    @Override
+    public void write (byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        while (length > 0) {
+            if (_current.length == BLOCK_SIZE) {
+                writeBlock();
+            }
+            int count = Math.min(length, BLOCK_SIZE - _current.length);
+            System.arraycopy(bytes, offset, _current.data, _current.length, count);
+            _current.length += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes out every full block and flushes the underlying stream. The block being filled is
+     * kept open, so that frequent flushes do not break the output up into lots of small blocks.
+     * Use sync() to write out everything.
+     */
+    @Override
+    public void flush ()
+        throws IOException
+    {
+        drain(0);
+        _out.flush();
+    }
+
+    /**
+     * Ends the current block early, writes out every pending block, and flushes the underlying
+     * stream, so that everything written so far is in the output.
+     */
+    public void sync ()
+        throws IOException
+    {
+        if (_current.length > 0) {
+            writeBlock();
+        }
+        flush();
+    }
+
+    /**
+     * Writes any buffered data and the end-of-file block, saves the index if there is an index
+     * file, and closes the underlying stream.
+     */
+    @Override
+    public void close ()
+        throws IOException
+    {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        try {
+            if (_current.length > 0) {
+                writeBlock();
+            }
+            // the end-of-file marker is just an empty block
+            writeBlock();
+            drain(0);
+            if (_indexFile != null) {
+                _index.save(_indexFile);
+            }
+        } finally {
+            if (_executor != null) {
+                _executor.shutdownNow();
+            }
+            synchronized (_deflaters) {
+                for (Deflater deflater : _deflaters) {
+                    deflater.end();
+                }
+            }
+            _out.close();
+        }
+    }
+
+    /**
+     * Compresses the current block, or queues it to be compressed, and starts a new one.
+     */
+    protected void writeBlock ()
+        throws IOException
+    {
+        final Block block = _current;
+        if (_executor == null) {
+            block.size = compress(getDeflater(), block.data, block.length, block.compressed);
+            write(block);
+        } else {
+            block.future = _executor.submit(new Callable<Integer>() {
+                @Override public Integer call () {
+                    return compress(getDeflater(), block.data, block.length, block.compressed);
+                }
+            });
+            _pending.addLast(block);
+            drain(_window - 1);
+        }
+        _current = _free.isEmpty() ? new Block() : _free.removeFirst();
+    }
+
+    /**
+     * Writes out finished blocks, in order, until no more than the given number are pending.
+     */
+    protected void drain (int pending)
+        throws IOException
+    {
+        while (_pending.size() > pending) {
+            Block block = _pending.removeFirst();
+            try {
+                block.size = block.future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            }
+            write(block);
+        }
+    }
+
+    protected void write (Block block)
+        throws IOException
+    {
+        _index.add(_compressedOffset, _uncompressedOffset);
+        _out.write(block.compressed, 0, block.size);
+        _compressedOffset += block.size;
+        _uncompressedOffset += block.length;
+        block.length = 0;
+        block.future = null;
+        _free.addLast(block);
+    }
+
+    /**
+     * Returns this thread's deflater.
+     */
+    protected Deflater getDeflater ()
+    {
+        Deflater deflater = _threadDeflater.get();
+        if (deflater == null) {
+            deflater = new Deflater(_level, true);
+            _threadDeflater.set(deflater);
+            synchronized (_deflaters) {
+                _deflaters.add(deflater);
+            }
+        }
+        return deflater;
+    }
+
+    /**
+     * A block of data and the buffer it is compressed into.
+     */
+    protected static class Block
+    {
+        public byte[] data = new byte[BLOCK_SIZE];
+
+        public int length;
+
+        public byte[] compressed = new byte[MAX_BLOCK_SIZE];
+
+        public int size;
+
+        public Future<Integer> future;
+    }
+
+    /**
+     * Compresses up to BLOCK_SIZE bytes into a complete BGZF block. Data that will not deflate
+     * into the space allowed is stored as is.
+     *
+     * @param block a buffer of at least MAX_BLOCK_SIZE bytes to hold the block.
+     * @return the size of the block.
+     */
+    public static int compress (Deflater deflater, byte[] data, int length, byte[] block)
+    {
+        int capacity = MAX_BLOCK_SIZE - BlockGZipIndex.HEADER_SIZE - TRAILER_SIZE;
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressed = deflater.deflate(block, BlockGZipIndex.HEADER_SIZE, capacity);
+        if (!deflater.finished()) {
+            // a single final stored block: a type byte, then the length and its complement
+            int position = BlockGZipIndex.HEADER_SIZE;
+            block[position++] = 1;
+            block[position++] = (byte) length;
+            block[position++] = (byte) (length >>> 8);
+            block[position++] = (byte) ~length;
+            block[position++] = (byte) (~length >>> 8);
+            System.arraycopy(data, 0, block, position, length);
+            compressed = 5 + length;
+        }
+
+        int size = BlockGZipIndex.HEADER_SIZE + compressed + TRAILER_SIZE;
+        writeHeader(block, size);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int position = BlockGZipIndex.HEADER_SIZE + compressed;
+        writeInt(block, position, (int) crc.getValue());
+        writeInt(block, position + 4, length);
+        return size;
+    }
+
+    protected static void writeHeader (byte[] block, int size)
+    {
+        // gzip magic, deflate, FEXTRA, no mtime, no extra flags, unknown OS
+        block[0] = 0x1f;
+        block[1] = (byte) 0x8b;
+        block[2] = 8;
+        block[3] = 4;
+        writeInt(block, 4, 0);
+        block[8] = 0;
+        block[9] = (byte) 0xff;
+        // XLEN, then the "BC" subfield holding the block size minus one
+        block[10] = 6;
+        block[11] = 0;
+        block[12] = 'B';
+        block[13] = 'C';
+        block[14] = 2;
+        block[15] = 0;
+        block[16] = (byte) (size - 1);
+        block[17] = (byte) ((size - 1) >>> 8);
+    }
+
+    protected static void writeInt (byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
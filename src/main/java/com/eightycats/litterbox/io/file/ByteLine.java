@@ -0,0 +1,268 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable view of one line of raw bytes in a read buffer. Characters are only decoded when
+ * they are needed, and lines that are pure ASCII (or any line in ISO-8859-1) are read straight
+ * from the bytes without decoding them at all.
+ * <p>
+ * The view is only valid until the next line is read. Call {@link #toString()} to keep a copy.
+ */
+public class ByteLine
+    implements CharSequence
+{
+    protected byte[] _bytes;
+
+    protected int _offset;
+
+    protected int _length;
+
+    protected Charset _charset;
+
+    /**
+     * True if ASCII bytes map straight to the same characters in our charset.
+     */
+    protected boolean _asciiCompatible;
+
+    /**
+     * True if every byte maps straight to the same character in our charset.
+     */
+    protected boolean _latin1;
+
+    /**
+     * Whether the current line is all ASCII: 1 for yes, 0 for no, -1 if we haven't checked yet.
+     */
+    protected int _ascii = -1;
+
+    protected CharsetDecoder _decoder;
+
+    /**
+     * Reusable buffer for lines that need to be decoded.
+     */
+    protected CharBuffer _chars;
+
+    /**
+     * True if the current line has been decoded into the char buffer.
+     */
+    protected boolean _decoded;
+
+    public ByteLine (Charset charset)
+    {
+        _charset = charset;
+        _latin1 = StandardCharsets.ISO_8859_1.equals(charset);
+        _asciiCompatible = _latin1 || isAsciiCompatible(charset);
+    }
+
+    /**
+     * Points this view at a new line.
+     */
+    public void set (byte[] bytes, int offset, int length)
+    {
+        _bytes = bytes;
+        _offset = offset;
+        _length = length;
+        _ascii = -1;
+        _decoded = false;
+    }
+
+    public byte[] getBytes ()
+    {
+        return _bytes;
+    }
+
+    public int getOffset ()
+    {
+        return _offset;
+    }
+
+    public int byteLength ()
+    {
+        return _length;
+    }
+
+    public byte byteAt (int index)
+    {
+        return _bytes[_offset + index];
+    }
+
+    public Charset getCharset ()
+    {
+        return _charset;
+    }
+
+    /**
+     * Returns true if every byte in the line is a 7-bit ASCII character.
+     */
+    public boolean isAscii ()
+    {
+        if (_ascii < 0) {
+            _ascii = 1;
+            for (int i = _offset, end = _offset + _length; i < end; i++) {
+                if (_bytes[i] < 0) {
+                    _ascii = 0;
+                    break;
+                }
+            }
+        }
+        return _ascii == 1;
+    }
+
+    /**
+     * Returns true if characters can be read straight from the bytes.
+     */
+    protected boolean isSingleByte ()
+    {
+        return _latin1 || (_asciiCompatible && isAscii());
+    }
+
+    @Override
+    public int length ()
+    {
+        return isSingleByte() ? _length : decode().length();
+    }
+
+    @Override
+    public char charAt (int index)
+    {
+        if (isSingleByte()) {
+            if (index < 0 || index >= _length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return (char) (_bytes[_offset + index] & 0xFF);
+        }
+        return decode().get(index);
+    }
+
+    @Override
+    public CharSequence subSequence (int start, int end)
+    {
+        return toString().substring(start, end);
+    }
+
+    /**
+     * Returns the index of the first occurrence of the given character, or -1.
+     */
+    public int indexOf (char ch)
+    {
+        if (isSingleByte()) {
+            if (ch <= 0xFF) {
+                byte b = (byte) ch;
+                for (int i = 0; i < _length; i++) {
+                    if (_bytes[_offset + i] == b) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        CharBuffer chars = decode();
+        for (int i = 0, length = chars.length(); i < length; i++) {
+            if (chars.get(i) == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean startsWith (CharSequence prefix)
+    {
+        int length = prefix.length();
+        if (length > length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the characters in this line to the given text.
+     */
+    public boolean contentEquals (CharSequence text)
+    {
+        return length() == text.length() && startsWith(text);
+    }
+
+    /**
+     * Creates a String copy of the line.
+     */
+    @Override
+    public String toString ()
+    {
+        if (isSingleByte()) {
+            return new String(_bytes, _offset, _length, StandardCharsets.ISO_8859_1);
+        }
+        return decode().toString();
+    }
+
+    protected CharBuffer decode ()
+    {
+        if (!_decoded) {
+            if (_decoder == null) {
+                _decoder = _charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            int capacity = (int) (_length * (double) _decoder.maxCharsPerByte()) + 1;
+            if (_chars == null || _chars.capacity() < capacity) {
+                _chars = CharBuffer.allocate(Math.max(capacity, 256));
+            }
+            _chars.clear();
+            _decoder.reset();
+            _decoder.decode(ByteBuffer.wrap(_bytes, _offset, _length), _chars, true);
+            _decoder.flush(_chars);
+            _chars.flip();
+            _decoded = true;
+        }
+        return _chars;
+    }
+
+    /**
+     * Checks whether the 7-bit ASCII characters in the given charset are encoded as single bytes
+     * with the same values.
+     */
+    public static boolean isAsciiCompatible (Charset charset)
+    {
+        if (!charset.canEncode()) {
+            return false;
+        }
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
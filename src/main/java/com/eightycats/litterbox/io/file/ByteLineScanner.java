@@ -0,0 +1,160 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a byte stream into lines without decoding them. Lines are terminated by "\n", "\r" or
+ * "\r\n", the same as BufferedReader.readLine(). Each line is returned as a reusable
+ * {@link ByteLine} view over the read buffer. The buffer grows as needed to fit long lines.
+ * <p>
+ * The line terminators are found by looking for 0x0A and 0x0D bytes, so this only works for
+ * encodings that are ASCII compatible, like UTF-8 or ISO-8859-1.
+ */
+public class ByteLineScanner
+{
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    protected InputStream _input;
+
+    protected byte[] _buffer;
+
+    /**
+     * Start of the unread data in the buffer.
+     */
+    protected int _start;
+
+    /**
+     * End of the valid data in the buffer.
+     */
+    protected int _end;
+
+    protected boolean _eof;
+
+    /**
+     * The stream offset of the first unread byte.
+     */
+    protected long _position;
+
+    protected ByteLine _line;
+
+    public ByteLineScanner (InputStream input, Charset charset)
+    {
+        this(input, charset, 0);
+    }
+
+    /**
+     * @param position
+     *            the offset in the underlying file that the input stream starts at. Only used for
+     *            reporting positions.
+     */
+    public ByteLineScanner (InputStream input, Charset charset, long position)
+    {
+        _input = input;
+        _buffer = new byte[DEFAULT_BUFFER_SIZE];
+        _line = new ByteLine(charset);
+        _position = position;
+    }
+
+    /**
+     * Returns the next line, or null at the end of the stream. The returned line is only valid
+     * until the next call.
+     */
+    public ByteLine next ()
+        throws IOException
+    {
+        int scan = _start;
+        while (true) {
+            while (scan < _end && _buffer[scan] != '\n' && _buffer[scan] != '\r') {
+                scan++;
+            }
+
+            if (scan < _end) {
+                if (_buffer[scan] == '\r' && scan + 1 == _end && !_eof) {
+                    // need to see the next byte to know whether this is a "\r\n"
+                    scan -= fill();
+                    continue;
+                }
+                int next = scan + 1;
+                if (_buffer[scan] == '\r' && next < _end && _buffer[next] == '\n') {
+                    next++;
+                }
+                return advance(scan, next);
+            }
+
+            if (_eof) {
+                return _start < _end ? advance(_end, _end) : null;
+            }
+            scan -= fill();
+        }
+    }
+
+    /**
+     * Returns the stream offset just past the last line returned, i.e. where the next line
+     * starts.
+     */
+    public long getPosition ()
+    {
+        return _position;
+    }
+
+    public void close ()
+        throws IOException
+    {
+        _input.close();
+    }
+
+    /**
+     * Sets the line view to the bytes from the unread start up to the given end, and marks
+     * everything up to next as read.
+     */
+    protected ByteLine advance (int end, int next)
+    {
+        _line.set(_buffer, _start, end - _start);
+        _position += next - _start;
+        _start = next;
+        return _line;
+    }
+
+    /**
+     * Moves any unread data to the front of the buffer, growing it if it is full, and reads more
+     * data into it. Returns how far the unread data was shifted.
+     */
+    protected int fill ()
+        throws IOException
+    {
+        int shift = _start;
+        if (shift > 0) {
+            System.arraycopy(_buffer, _start, _buffer, 0, _end - _start);
+            _end -= shift;
+            _start = 0;
+        } else if (_end == _buffer.length) {
+            byte[] bigger = new byte[_buffer.length * 2];
+            System.arraycopy(_buffer, 0, bigger, 0, _end);
+            _buffer = bigger;
+        }
+
+        int count = _input.read(_buffer, _end, _buffer.length - _end);
+        if (count < 0) {
+            _eof = true;
+        } else {
+            _end += count;
+        }
+        return shift;
+    }
+}
@@ -15,9 +15,13 @@
 package com.eightycats.litterbox.io.file;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * Prints the contents of a file to an output writer.
@@ -34,6 +38,35 @@ public class Cat extends LineReader
      */
     protected boolean _verbose;
 
+    /**
+     * The file the output goes to, if it is going to a file. Checkpoints record how much of it
+     * has been written.
+     */
+    protected File _outputFile;
+
+    /**
+     * The raw stream for the output file, if any. Block gzipped output is synced at checkpoints.
+     */
+    protected OutputStream _outputStream;
+
+    /**
+     * The checkpoint properties holding the output file and its length.
+     */
+    public static final String OUTPUT_PATH = "output.path";
+
+    public static final String OUTPUT_LENGTH = "output.length";
+
+    /**
+     * The next stage, if this is part of a {@link CatPipeline}. Output lines are handed to it
+     * instead of being printed.
+     */
+    protected Cat _downstream;
+
+    /**
+     * Text printed for the downstream stage that does not make up a whole line yet.
+     */
+    protected StringBuilder _partial = new StringBuilder();
+
     public Cat ()
     {
         // by default, send output, if any, to stdout
@@ -50,7 +83,18 @@ public class Cat extends LineReader
      */
     protected void print (String text)
     {
-        _out.print(text);
+        if (_downstream != null) {
+            _partial.append(text);
+            int end = _partial.indexOf("\n");
+            while (end >= 0) {
+                int lineEnd = (end > 0 && _partial.charAt(end - 1) == '\r') ? end - 1 : end;
+                _downstream.process(_partial.substring(0, lineEnd));
+                _partial.delete(0, end + 1);
+                end = _partial.indexOf("\n");
+            }
+        } else {
+            _out.print(text);
+        }
         if (_verbose) {
             System.out.print(text);
         }
@@ -61,7 +105,15 @@ public class Cat extends LineReader
      */
     protected void println (String line)
     {
-        _out.println(line);
+        if (_downstream != null) {
+            if (_partial.length() > 0) {
+                line = _partial.append(line).toString();
+                _partial.setLength(0);
+            }
+            _downstream.process(line);
+        } else {
+            _out.println(line);
+        }
         if (_verbose) {
             System.out.println(line);
         }
@@ -73,12 +125,75 @@ public class Cat extends LineReader
         println(line);
     }
 
+    /**
+     * Prints a batch of lines and flushes them, so that followed files show up as they grow.
+     */
+    @Override
+    protected void process (List<String> lines)
+    {
+        super.process(lines);
+        _out.flush();
+    }
+
     @Override
     protected void done (File file)
     {
+        if (_downstream != null && _partial.length() > 0) {
+            _downstream.process(_partial.toString());
+            _partial.setLength(0);
+        }
         _out.flush();
     }
 
+    /**
+     * Sends the output lines to the given stage instead of the writer, or back to the writer if
+     * null.
+     */
+    public void setDownstream (Cat downstream)
+    {
+        _downstream = downstream;
+    }
+
+    /**
+     * Returns true if each output line depends only on the input line being processed, and not
+     * on anything seen before. Stateless stages can run on their own threads in a
+     * {@link CatPipeline}.
+     */
+    protected boolean isStateless ()
+    {
+        return false;
+    }
+
+    /**
+     * Flushes the output so that it is all on disk when the checkpoint is taken, and records the
+     * output file's length so that a resumed read can cut off anything written after it.
+     */
+    @Override
+    protected void saveState (Properties state)
+        throws IOException
+    {
+        super.saveState(state);
+        _out.flush();
+        if (_outputStream instanceof BlockGZipOutputStream) {
+            // flushing leaves the last block open
+            ((BlockGZipOutputStream) _outputStream).sync();
+        }
+        if (_outputFile != null) {
+            FileUtils.sync(_outputFile);
+            state.setProperty(OUTPUT_PATH, _outputFile.getPath());
+            state.setProperty(OUTPUT_LENGTH, Long.toString(_outputFile.length()));
+        }
+    }
+
+    /**
+     * Everything processed has been printed, so the output is all there is to save.
+     */
+    @Override
+    protected boolean supportsCheckpoints ()
+    {
+        return true;
+    }
+
     /**
      * If true, output will also get printed to System.out.
      */
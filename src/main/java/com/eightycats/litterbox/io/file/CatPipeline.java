@@ -0,0 +1,376 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs several Cat stages over a file in a single pass. Each stage's output lines are handed
+ * straight to the next stage, and only the last stage writes to the output. For example, a
+ * Replace, a Unique and a Sort can clean up a file with one read and one write:
+ *
+ * <pre>
+ * CatWriter.process(path, new CatPipeline(new Replace(a, b), new Unique(), new Sort()));
+ * </pre>
+ *
+ * When threaded, every stateless stage (see {@link Cat#isStateless()}) after the first runs on
+ * its own thread, fed batches of lines through a bounded queue. Stages are sent done() in order,
+ * once everything before them has finished, so stages that only write their results at the end,
+ * like Sort, still see all of their input.
+ * <p>
+ * A pipeline can be checkpointed if all of its stages can. At a checkpoint, every line read so far
+ * is pushed through the threaded stages before each stage saves its state.
+ */
+public class CatPipeline extends Cat
+{
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    /**
+     * The number of batches that can wait for a stage before the stage feeding it blocks.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    protected List<Cat> _stages;
+
+    protected boolean _threaded;
+
+    protected int _batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Prefixes each stage's checkpoint properties, followed by the stage's index and a dot.
+     */
+    protected static final String STAGE_PREFIX = "stage.";
+
+    /**
+     * The checkpoint property holding text a stage printed that does not make up a whole line.
+     */
+    protected static final String PARTIAL = "partial";
+
+    /**
+     * The threaded hand-offs in front of each stage, or null for stages called directly.
+     */
+    protected Handoff[] _handoffs;
+
+    public CatPipeline (Cat... stages)
+    {
+        _stages = new ArrayList<Cat>(Arrays.asList(stages));
+    }
+
+    /**
+     * If true, stateless stages run on their own threads.
+     */
+    public void setThreaded (boolean threaded)
+    {
+        _threaded = threaded;
+    }
+
+    /**
+     * Sets the number of lines handed from one thread to the next at a time.
+     */
+    public void setBatchSize (int batchSize)
+    {
+        _batchSize = batchSize;
+    }
+
+    /**
+     * The last stage writes to the pipeline's writer.
+     */
+    @Override
+    public void setWriter (Writer output)
+    {
+        super.setWriter(output);
+        _stages.get(_stages.size() - 1).setWriter(output);
+    }
+
+    @Override
+    protected void start (File file)
+    {
+        super.start(file);
+        _handoffs = new Handoff[_stages.size()];
+        for (int i = 0; i < _stages.size(); i++) {
+            Cat stage = _stages.get(i);
+            if (i == _stages.size() - 1) {
+                stage._outputFile = _outputFile;
+                stage._outputStream = _outputStream;
+            }
+            if (i > 0) {
+                Cat upstream = _stages.get(i - 1);
+                if (_threaded && stage.isStateless()) {
+                    _handoffs[i] = new Handoff(stage);
+                    upstream.setDownstream(_handoffs[i]);
+                } else {
+                    upstream.setDownstream(stage);
+                }
+            }
+            stage.start(file);
+        }
+        for (Handoff handoff : _handoffs) {
+            if (handoff != null) {
+                handoff.begin();
+            }
+        }
+    }
+
+    @Override
+    protected void process (String line)
+    {
+        _stages.get(0).process(line);
+    }
+
+    @Override
+    protected void process (ByteLine line)
+    {
+        _stages.get(0).process(line);
+    }
+
+    @Override
+    protected void done (File file)
+    {
+        try {
+            for (int i = 0; i < _stages.size(); i++) {
+                // wait for everything upstream to reach this stage before finishing it
+                if (_handoffs[i] != null) {
+                    _handoffs[i].finish();
+                }
+                _stages.get(i).done(file);
+            }
+        } finally {
+            for (Handoff handoff : _handoffs) {
+                if (handoff != null) {
+                    handoff.abort();
+                }
+            }
+            for (Cat stage : _stages) {
+                stage.setDownstream(null);
+            }
+        }
+        super.done(file);
+    }
+
+    @Override
+    protected boolean supportsCheckpoints ()
+    {
+        for (Cat stage : _stages) {
+            if (!stage.supportsCheckpoints()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the threaded stages to catch up, and then saves the state of each stage under its
+     * own prefix, followed by the output written so far.
+     */
+    @Override
+    protected void saveState (Properties state)
+        throws IOException
+    {
+        for (Handoff handoff : _handoffs) {
+            if (handoff != null) {
+                handoff.drain();
+            }
+        }
+        for (int i = 0; i < _stages.size(); i++) {
+            Cat stage = _stages.get(i);
+            Properties stageState = new Properties();
+            stage.saveState(stageState);
+            if (stage._partial.length() > 0) {
+                stageState.setProperty(PARTIAL, stage._partial.toString());
+            }
+            for (String key : stageState.stringPropertyNames()) {
+                state.setProperty(STAGE_PREFIX + i + "." + key, stageState.getProperty(key));
+            }
+        }
+        super.saveState(state);
+    }
+
+    @Override
+    protected void restoreState (Properties state)
+        throws IOException
+    {
+        super.restoreState(state);
+        for (int i = 0; i < _stages.size(); i++) {
+            String prefix = STAGE_PREFIX + i + ".";
+            Properties stageState = new Properties();
+            for (Map.Entry<Object, Object> entry : state.entrySet()) {
+                String key = (String) entry.getKey();
+                if (key.startsWith(prefix)) {
+                    stageState.setProperty(key.substring(prefix.length()),
+                        (String) entry.getValue());
+                }
+            }
+            Cat stage = _stages.get(i);
+            stage.restoreState(stageState);
+            String partial = stageState.getProperty(PARTIAL);
+            if (partial != null) {
+                stage._partial.append(partial);
+            }
+        }
+    }
+
+    /**
+     * Collects the lines sent to a stage into batches and feeds them to that stage on its own
+     * thread.
+     */
+    protected class Handoff extends Cat
+        implements Runnable
+    {
+        protected Cat _stage;
+
+        protected BlockingQueue<List<String>> _queue = new ArrayBlockingQueue<List<String>>(
+            DEFAULT_QUEUE_SIZE);
+
+        protected List<String> _batch = new ArrayList<String>(_batchSize);
+
+        protected Thread _thread;
+
+        protected volatile RuntimeException _error;
+
+        /**
+         * Sent through the queue to find out when everything before it has been processed.
+         */
+        protected final List<String> _drainMarker = new ArrayList<String>(0);
+
+        protected Semaphore _drained = new Semaphore(0);
+
+        public Handoff (Cat stage)
+        {
+            _stage = stage;
+        }
+
+        public void begin ()
+        {
+            _thread = new Thread(this, "CatPipeline-" + _stage.getClass().getSimpleName());
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+
+        @Override
+        protected void process (String line)
+        {
+            _batch.add(line);
+            if (_batch.size() >= _batchSize) {
+                send();
+            }
+        }
+
+        /**
+         * Sends what is left, waits for the stage to process it all, and rethrows anything the
+         * stage threw.
+         */
+        public void finish ()
+        {
+            send();
+            put(new ArrayList<String>(0));
+            join();
+            if (_error != null) {
+                throw _error;
+            }
+        }
+
+        /**
+         * Sends what is left and waits for the stage to process it all, leaving the thread
+         * running.
+         */
+        public void drain ()
+        {
+            send();
+            put(_drainMarker);
+            try {
+                _drained.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            if (_error != null) {
+                throw _error;
+            }
+        }
+
+        /**
+         * Stops the thread if it is still running, after a failure further up.
+         */
+        public void abort ()
+        {
+            if (_thread != null && _thread.isAlive()) {
+                _thread.interrupt();
+                join();
+            }
+        }
+
+        @Override
+        public void run ()
+        {
+            try {
+                List<String> batch = _queue.take();
+                while (batch == _drainMarker || !batch.isEmpty()) {
+                    if (batch == _drainMarker) {
+                        _drained.release();
+                    } else if (_error == null) {
+                        try {
+                            for (String line : batch) {
+                                _stage.process(line);
+                            }
+                        } catch (RuntimeException ex) {
+                            // keep taking batches so that the stage feeding us does not block
+                            _error = ex;
+                        }
+                    }
+                    batch = _queue.take();
+                }
+            } catch (InterruptedException ex) {
+                // aborted
+            }
+        }
+
+        protected void send ()
+        {
+            if (!_batch.isEmpty()) {
+                put(_batch);
+                _batch = new ArrayList<String>(_batchSize);
+            }
+        }
+
+        protected void put (List<String> batch)
+        {
+            try {
+                _queue.put(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        protected void join ()
+        {
+            try {
+                _thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
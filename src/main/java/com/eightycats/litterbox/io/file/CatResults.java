@@ -28,6 +28,15 @@ public abstract class CatResults extends Cat
         super.done(file);
     }
 
+    /**
+     * The results are only printed at the end, so they would be lost by a resumed read.
+     */
+    @Override
+    protected boolean supportsCheckpoints ()
+    {
+        return false;
+    }
+
     /**
      * Print all of the results to the output Writer.
      */
@@ -48,6 +48,8 @@ public class CatWriter extends ReadWrite
     {
         setWriter(output);
         _reader.setWriter(output);
+        _reader._outputFile = _outputFile;
+        _reader._outputStream = _outputStream;
 
         // read the input file, process each line
         File inputFile = new File(filePath);
@@ -57,6 +59,22 @@ public class CatWriter extends ReadWrite
         done(inputFile);
     }
 
+    /**
+     * Checkpoints are taken by the wrapped reader, so it gets the interval too.
+     */
+    @Override
+    public void setCheckpointInterval (long bytes)
+    {
+        super.setCheckpointInterval(bytes);
+        _reader.setCheckpointInterval(bytes);
+    }
+
+    @Override
+    protected boolean supportsCheckpoints ()
+    {
+        return _reader.supportsCheckpoints();
+    }
+
     /**
      * Process the specified file in place. Use the give reader to process it.
      */
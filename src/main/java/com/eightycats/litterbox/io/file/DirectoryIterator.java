@@ -16,18 +16,45 @@ package com.eightycats.litterbox.io.file;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Visits every file in a directory.
+ * Visits every file in a directory. Keeps count of the directories, files and bytes visited
+ * instead of printing each file.
+ * <p>
+ * With a {@link FileManifest} set, runs are incremental: only files that are new or have changed
+ * since the last run are read. The manifest is saved every so many files and at the end of the
+ * run, so a run that dies part way through picks up about where it left off.
  */
 public class DirectoryIterator
 {
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
     protected String _parent;
 
     protected FileFilter _filter;
 
     protected boolean _recurse;
 
+    protected AtomicLong _directoryCount = new AtomicLong();
+
+    protected AtomicLong _fileCount = new AtomicLong();
+
+    protected AtomicLong _byteCount = new AtomicLong();
+
+    protected AtomicLong _skippedCount = new AtomicLong();
+
+    /**
+     * Remembers what was read by earlier runs, if this is an incremental run.
+     */
+    protected FileManifest _manifest;
+
+    /**
+     * The number of files read between manifest saves, or 0 to only save at the end of the run.
+     */
+    protected int _checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
     public DirectoryIterator (String parentPath)
     {
         this(parentPath, true);
@@ -56,7 +83,181 @@ public class DirectoryIterator
      */
     public void run (FileReader fileReader)
     {
+        startRun();
         run(fileReader, new File(_parent));
+        finishRun();
+    }
+
+    /**
+     * Makes runs incremental, skipping files that the given manifest says have not changed.
+     */
+    public void setManifest (FileManifest manifest)
+    {
+        _manifest = manifest;
+    }
+
+    /**
+     * Sets how many files are read between saves of the manifest. Zero or less only saves the
+     * manifest at the end of the run.
+     */
+    public void setCheckpointInterval (int files)
+    {
+        _checkpointInterval = files;
+    }
+
+    /**
+     * Returns the number of directories listed so far, including the parent.
+     */
+    public long getDirectoryCount ()
+    {
+        return _directoryCount.get();
+    }
+
+    /**
+     * Returns the number of files read so far.
+     */
+    public long getFileCount ()
+    {
+        return _fileCount.get();
+    }
+
+    /**
+     * Returns the total size of the files read so far.
+     */
+    public long getByteCount ()
+    {
+        return _byteCount.get();
+    }
+
+    /**
+     * Returns the number of files skipped so far because they have not changed.
+     */
+    public long getSkippedCount ()
+    {
+        return _skippedCount.get();
+    }
+
+    /**
+     * Describes the progress so far.
+     */
+    public String getProgress ()
+    {
+        String progress = getFileCount() + " files (" + getByteCount() + " bytes) in "
+            + getDirectoryCount() + " directories";
+        if (_manifest != null) {
+            progress += ", " + getSkippedCount() + " unchanged";
+        }
+        return progress;
+    }
+
+    /**
+     * Resets the counts and loads the manifest, if there is one.
+     */
+    protected void startRun ()
+    {
+        _directoryCount.set(0);
+        _fileCount.set(0);
+        _byteCount.set(0);
+        _skippedCount.set(0);
+        if (_manifest != null) {
+            try {
+                _manifest.load();
+            } catch (IOException ex) {
+                // without the old manifest, everything gets read again
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Forgets files that no longer exist and saves the manifest, if there is one.
+     */
+    protected void finishRun ()
+    {
+        if (_manifest != null) {
+            _manifest.removeUnseen();
+            checkpoint();
+        }
+    }
+
+    /**
+     * Returns true if the results of every file read so far are safe, so the manifest can be
+     * saved part way through the run.
+     */
+    protected boolean canCheckpoint ()
+    {
+        return true;
+    }
+
+    protected void checkpoint ()
+    {
+        try {
+            _manifest.save();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks whether a file or directory passes the filter, if there is one.
+     */
+    protected boolean accept (File file)
+    {
+        return _filter == null || _filter.accept(file);
+    }
+
+    /**
+     * Reads one file with the given reader and counts it.
+     */
+    protected void read (FileReader fileReader, File file)
+    {
+        if (_manifest != null && !isChanged(file)) {
+            _skippedCount.incrementAndGet();
+            return;
+        }
+
+        // anything appended while the file is being read gets picked up by the next run
+        long size = file.length();
+        long lastModified = file.lastModified();
+        boolean read = readFile(fileReader, file);
+        long count = _fileCount.incrementAndGet();
+        _byteCount.addAndGet(size);
+
+        if (_manifest != null) {
+            if (read) {
+                try {
+                    _manifest.update(file, size, lastModified);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            if (_checkpointInterval > 0 && count % _checkpointInterval == 0
+                && canCheckpoint()) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Passes one file to the reader.
+     *
+     * @return false if the file could not be read.
+     */
+    protected boolean readFile (FileReader fileReader, File file)
+    {
+        fileReader.read(file.getAbsolutePath());
+        return !(fileReader instanceof LineReader)
+            || ((LineReader) fileReader).getReadError() == null;
+    }
+
+    protected boolean isChanged (File file)
+    {
+        try {
+            return _manifest.isChanged(file);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return true;
+        }
     }
 
     protected void run (FileReader fileReader, File parentDir)
@@ -67,6 +268,12 @@ public class DirectoryIterator
         } else {
             files = parentDir.listFiles();
         }
+        if (files == null) {
+            new IOException("Could not list directory [" + parentDir.getPath() + "]")
+                .printStackTrace();
+            return;
+        }
+        _directoryCount.incrementAndGet();
 
         for (File file : files) {
             if (file.isDirectory()) {
@@ -74,8 +281,7 @@ public class DirectoryIterator
                     run(fileReader, file);
                 }
             } else {
-                System.out.println("Processing file: " + file.getAbsolutePath());
-                fileReader.read(file.getAbsolutePath());
+                read(fileReader, file);
             }
         }
     }
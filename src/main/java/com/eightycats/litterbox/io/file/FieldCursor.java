@@ -0,0 +1,458 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.util.Arrays;
+
+import com.eightycats.litterbox.format.FieldParser;
+
+/**
+ * A reusable view of the fields on one line. Parsing a line only records where each field
+ * starts and ends, so fields can be compared, hashed and parsed in place, and a String is only
+ * created for fields that are asked for one.
+ * <p>
+ * By default, fields are split the way StringTokenizer splits them: any of the delimiter
+ * characters ends a field, and runs of delimiters count as one, so there are no empty fields. In
+ * CSV mode, fields are split as described by RFC 4180: every delimiter ends a field, so fields
+ * can be empty, and fields in double quotes can contain delimiters, line breaks, and doubled
+ * quotes standing for one quote.
+ * <p>
+ * Like the line it is parsing, the view is only valid until the next line is set.
+ */
+public class FieldCursor
+{
+    public static final char QUOTE = '"';
+
+    protected String _delimiters;
+
+    /**
+     * Flags the delimiters below 128, so that they can be checked without a search.
+     */
+    protected boolean[] _asciiDelimiters = new boolean[128];
+
+    /**
+     * True if there are delimiters above 127.
+     */
+    protected boolean _otherDelimiters;
+
+    protected boolean _csv;
+
+    protected CharSequence _line;
+
+    protected int _count;
+
+    protected int[] _starts = new int[16];
+
+    protected int[] _ends = new int[16];
+
+    /**
+     * True for quoted fields that contain doubled quotes.
+     */
+    protected boolean[] _escaped = new boolean[16];
+
+    /**
+     * False if the line ended inside a quoted field.
+     */
+    protected boolean _complete = true;
+
+    public FieldCursor (String delimiters)
+    {
+        this(delimiters, false);
+    }
+
+    /**
+     * @param csv
+     *            if true, fields are split as described by RFC 4180. Otherwise they are split like
+     *            StringTokenizer does.
+     */
+    public FieldCursor (String delimiters, boolean csv)
+    {
+        _delimiters = delimiters;
+        _csv = csv;
+        for (int i = 0; i < delimiters.length(); i++) {
+            char ch = delimiters.charAt(i);
+            if (ch < 128) {
+                _asciiDelimiters[ch] = true;
+            } else {
+                _otherDelimiters = true;
+            }
+        }
+    }
+
+    /**
+     * Creates a cursor for comma separated values.
+     */
+    public static FieldCursor csv ()
+    {
+        return new FieldCursor(",", true);
+    }
+
+    public String getDelimiters ()
+    {
+        return _delimiters;
+    }
+
+    public boolean isCSV ()
+    {
+        return _csv;
+    }
+
+    /**
+     * Parses a new line.
+     *
+     * @return this cursor.
+     */
+    public FieldCursor set (CharSequence line)
+    {
+        _line = line;
+        _count = 0;
+        _complete = true;
+        if (_csv) {
+            splitCSV(line);
+        } else {
+            splitTokens(line);
+        }
+        return this;
+    }
+
+    protected void splitTokens (CharSequence line)
+    {
+        int length = line.length();
+        int pos = 0;
+        while (pos < length) {
+            while (pos < length && isDelimiter(line.charAt(pos))) {
+                pos++;
+            }
+            if (pos == length) {
+                break;
+            }
+            int start = pos;
+            while (pos < length && !isDelimiter(line.charAt(pos))) {
+                pos++;
+            }
+            addField(start, pos, false);
+        }
+    }
+
+    protected void splitCSV (CharSequence line)
+    {
+        int length = line.length();
+        int pos = 0;
+        while (true) {
+            if (pos < length && line.charAt(pos) == QUOTE) {
+                int start = ++pos;
+                int end = -1;
+                boolean escaped = false;
+                while (pos < length) {
+                    if (line.charAt(pos) == QUOTE) {
+                        if (pos + 1 < length && line.charAt(pos + 1) == QUOTE) {
+                            escaped = true;
+                            pos += 2;
+                            continue;
+                        }
+                        end = pos++;
+                        break;
+                    }
+                    pos++;
+                }
+                if (end < 0) {
+                    // the field goes on past the end of the line
+                    _complete = false;
+                    end = length;
+                }
+                addField(start, end, escaped);
+                // anything between the closing quote and the next delimiter is malformed
+                while (pos < length && !isDelimiter(line.charAt(pos))) {
+                    pos++;
+                }
+            } else {
+                int start = pos;
+                while (pos < length && !isDelimiter(line.charAt(pos))) {
+                    pos++;
+                }
+                addField(start, pos, false);
+            }
+
+            if (pos >= length) {
+                break;
+            }
+            // skip the delimiter; one at the very end leaves an empty last field
+            pos++;
+        }
+    }
+
+    protected boolean isDelimiter (char ch)
+    {
+        if (ch < 128) {
+            return _asciiDelimiters[ch];
+        }
+        return _otherDelimiters && _delimiters.indexOf(ch) >= 0;
+    }
+
+    protected void addField (int start, int end, boolean escaped)
+    {
+        if (_count == _starts.length) {
+            _starts = Arrays.copyOf(_starts, _count * 2);
+            _ends = Arrays.copyOf(_ends, _count * 2);
+            _escaped = Arrays.copyOf(_escaped, _count * 2);
+        }
+        _starts[_count] = start;
+        _ends[_count] = end;
+        _escaped[_count] = escaped;
+        _count++;
+    }
+
+    /**
+     * Returns the line being parsed.
+     */
+    public CharSequence getLine ()
+    {
+        return _line;
+    }
+
+    public int getFieldCount ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns false if the line ended inside a quoted field, in which case the field most
+     * likely carries on over the next line. This is always true outside of CSV mode.
+     */
+    public boolean isComplete ()
+    {
+        return _complete;
+    }
+
+    /**
+     * Returns the offset in the line of the first character of the given field, after any
+     * opening quote.
+     */
+    public int getStart (int field)
+    {
+        checkField(field);
+        return _starts[field];
+    }
+
+    /**
+     * Returns the offset in the line just past the end of the given field, before any closing
+     * quote.
+     */
+    public int getEnd (int field)
+    {
+        checkField(field);
+        return _ends[field];
+    }
+
+    /**
+     * Returns true if the field's raw text contains doubled quotes, and so is not the same as its
+     * value.
+     */
+    public boolean isEscaped (int field)
+    {
+        checkField(field);
+        return _escaped[field];
+    }
+
+    /**
+     * Returns the number of characters in the field's value.
+     */
+    public int length (int field)
+    {
+        checkField(field);
+        int length = _ends[field] - _starts[field];
+        if (_escaped[field]) {
+            for (int i = _starts[field], end = _ends[field]; i < end; i++) {
+                if (_line.charAt(i) == QUOTE) {
+                    // the second of each pair is dropped
+                    length--;
+                    i++;
+                }
+            }
+        }
+        return length;
+    }
+
+    public boolean isEmpty (int field)
+    {
+        return getStart(field) == _ends[field];
+    }
+
+    /**
+     * Returns true if the field's value is the same as the given text.
+     */
+    public boolean equals (int field, CharSequence text)
+    {
+        checkField(field);
+        int end = _ends[field];
+        int length = text.length();
+        if (!_escaped[field]) {
+            if (end - _starts[field] != length) {
+                return false;
+            }
+            for (int i = 0, pos = _starts[field]; i < length; i++, pos++) {
+                if (_line.charAt(pos) != text.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int i = 0;
+        for (int pos = _starts[field]; pos < end; pos++) {
+            char ch = _line.charAt(pos);
+            if (i == length || ch != text.charAt(i++)) {
+                return false;
+            }
+            if (ch == QUOTE) {
+                pos++;
+            }
+        }
+        return i == length;
+    }
+
+    /**
+     * Returns true if the given fields of this and another cursor have the same value.
+     */
+    public boolean equals (int field, FieldCursor other, int otherField)
+    {
+        checkField(field);
+        other.checkField(otherField);
+        if (!_escaped[field] && !other._escaped[otherField]) {
+            int start = _starts[field];
+            int length = _ends[field] - start;
+            int otherStart = other._starts[otherField];
+            if (other._ends[otherField] - otherStart != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (_line.charAt(start + i) != other._line.charAt(otherStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // comparing unescaped values is rare enough to not be worth doing in place
+        return equals(field, other.getField(otherField));
+    }
+
+    /**
+     * Returns the same hash code as the field's value as a String would have.
+     */
+    public int hashCode (int field)
+    {
+        checkField(field);
+        int hash = 0;
+        boolean escaped = _escaped[field];
+        for (int pos = _starts[field], end = _ends[field]; pos < end; pos++) {
+            char ch = _line.charAt(pos);
+            hash = 31 * hash + ch;
+            if (escaped && ch == QUOTE) {
+                pos++;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Appends the field's value to the given buffer.
+     */
+    public StringBuilder appendField (int field, StringBuilder result)
+    {
+        checkField(field);
+        boolean escaped = _escaped[field];
+        if (!escaped) {
+            return result.append(_line, _starts[field], _ends[field]);
+        }
+        for (int pos = _starts[field], end = _ends[field]; pos < end; pos++) {
+            char ch = _line.charAt(pos);
+            result.append(ch);
+            if (ch == QUOTE) {
+                pos++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the field's value as a new String.
+     */
+    public String getField (int field)
+    {
+        checkField(field);
+        if (!_escaped[field]) {
+            return _line.subSequence(_starts[field], _ends[field]).toString();
+        }
+        return appendField(field, new StringBuilder(_ends[field] - _starts[field])).toString();
+    }
+
+    /**
+     * Parses the field as an int, without creating a String. See {@link FieldParser}.
+     */
+    public int getInt (int field)
+    {
+        return FieldParser.parseInt(_line, getStart(field), _ends[field]);
+    }
+
+    public long getLong (int field)
+    {
+        return FieldParser.parseLong(_line, getStart(field), _ends[field]);
+    }
+
+    public double getDouble (int field)
+    {
+        return FieldParser.parseDouble(_line, getStart(field), _ends[field]);
+    }
+
+    /**
+     * Parses the field as a decimal with the given number of places, such as cents, and returns
+     * its unscaled value.
+     */
+    public long getFixed (int field, int scale)
+    {
+        return FieldParser.parseFixed(_line, getStart(field), _ends[field], scale);
+    }
+
+    /**
+     * Parses the field as an ISO 8601 timestamp, and returns it as milliseconds since the epoch.
+     */
+    public long getTimestamp (int field)
+    {
+        return FieldParser.parseTimestamp(_line, getStart(field), _ends[field]);
+    }
+
+    protected void checkField (int field)
+    {
+        if (field < 0 || field >= _count) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + _count);
+        }
+    }
+
+    /**
+     * Returns the fields, for debugging.
+     */
+    @Override
+    public String toString ()
+    {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < _count; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            appendField(i, result);
+        }
+        return result.append(']').toString();
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.eightycats.litterbox.io.StreamUtils;
+import com.eightycats.litterbox.io.TransferStats;
+
+/**
+ * Copies files and directory trees. File contents are moved with FileChannel.transferTo(), so
+ * the OS can copy them without passing the bytes through the JVM. When copying a tree, the
+ * calling thread walks the directories and creates them, while the files are copied on a bounded
+ * pool of worker threads. If the workers fall behind, the walking thread copies files itself.
+ */
+public class FileCopier
+{
+    /**
+     * The number of pending file copies allowed per worker thread before the walk slows down.
+     */
+    protected static final int QUEUE_PER_THREAD = 64;
+
+    protected int _threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    protected boolean _preserveTimestamps;
+
+    protected TransferStats _stats = new TransferStats();
+
+    /**
+     * Sets the number of threads copying files. Copying lots of small files is mostly waiting on
+     * the file system, so this defaults to at least 4 even on machines with fewer cores.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * If true, copies get the same last modified time as their source files and directories.
+     */
+    public void setPreserveTimestamps (boolean preserveTimestamps)
+    {
+        _preserveTimestamps = preserveTimestamps;
+    }
+
+    /**
+     * Returns the files and bytes copied, and the time taken, by the last copy.
+     */
+    public TransferStats getStats ()
+    {
+        return _stats;
+    }
+
+    /**
+     * Copies a file or directory tree. Works the same as {@link FileUtils#copy(File, File)}.
+     */
+    public void copy (File source, File destination)
+        throws FileNotFoundException, IOException
+    {
+        if (!source.exists()) {
+            throw new FileNotFoundException("File [" + source.getPath() + "] does not exist.");
+        }
+
+        if (source.isDirectory()) {
+            copyTree(source, destination);
+        } else {
+            if (destination.exists() && destination.isDirectory()) {
+                destination = new File(destination.getPath(), source.getName());
+            }
+            _stats.start();
+            FileUtils.makeParentDirs(destination);
+            _stats.addFile(copyFile(source, destination));
+            _stats.stop();
+        }
+    }
+
+    /**
+     * Copies a directory tree to the given destination, copying the files in parallel.
+     */
+    public void copyTree (File source, File destination)
+        throws IOException
+    {
+        _stats.start();
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(_threads, _threads, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(_threads * QUEUE_PER_THREAD),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+        List<File[]> directories = new ArrayList<File[]>();
+        try {
+            walk(source, destination, executor, error, directories);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+
+        // copying files into the directories changes their timestamps, so set them last,
+        // innermost first
+        if (_preserveTimestamps) {
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                File[] pair = directories.get(i);
+                pair[1].setLastModified(pair[0].lastModified());
+            }
+        }
+        _stats.stop();
+    }
+
+    protected void walk (File source, File destination, ThreadPoolExecutor executor,
+        final AtomicReference<IOException> error, List<File[]> directories)
+        throws IOException
+    {
+        if (error.get() != null) {
+            return;
+        }
+
+        if (source.isDirectory()) {
+            // make sure that the destination dir is not an existing file
+            if (destination.exists() && !destination.isDirectory()) {
+                throw new IOException("Could not copy directory [" + source.getPath()
+                    + "]. The target file [" + destination.getPath() + "] already exists.");
+            }
+            destination.mkdirs();
+            directories.add(new File[] { source, destination });
+
+            File[] children = source.listFiles();
+            if (children == null) {
+                throw new IOException("Could not list directory [" + source.getPath() + "]");
+            }
+            for (File child : children) {
+                walk(child, new File(destination, child.getName()), executor, error, directories);
+            }
+
+        } else {
+            final File from = source;
+            final File to = destination;
+            executor.execute(new Runnable() {
+                @Override public void run () {
+                    if (error.get() == null) {
+                        try {
+                            _stats.addFile(copyFile(from, to));
+                        } catch (IOException ex) {
+                            error.compareAndSet(null, ex);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies one file, and its timestamp if we are preserving them. The destination's parent
+     * directory must already exist.
+     *
+     * @return the number of bytes copied.
+     */
+    protected long copyFile (File source, File destination)
+        throws IOException
+    {
+        long bytes = transfer(source, destination);
+        if (_preserveTimestamps) {
+            destination.setLastModified(source.lastModified());
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies the contents of one file to another using FileChannel.transferTo(). If a transfer
+     * makes no progress, the rest is copied through a buffer.
+     *
+     * @return the number of bytes copied.
+     */
+    public static long transfer (File source, File destination)
+        throws FileNotFoundException, IOException
+    {
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileOutputStream output = new FileOutputStream(destination);
+            try {
+                FileChannel in = input.getChannel();
+                FileChannel out = output.getChannel();
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long count = in.transferTo(position, size - position, out);
+                    if (count <= 0) {
+                        // either the file shrank while we were copying it, or the channels
+                        // will not transfer, so read whatever is left the slow way
+                        in.position(position);
+                        return position + StreamUtils.copy(input, output);
+                    }
+                    position += count;
+                }
+                return position;
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
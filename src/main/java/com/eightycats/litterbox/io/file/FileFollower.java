@@ -0,0 +1,464 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.eightycats.litterbox.util.DaemonThreadFactory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Follows growing files like "tail -F", handing each batch of newly appended lines to a
+ * {@link LineReader}. The files are kept open, and a single watcher thread waits on a
+ * WatchService for their directories to report changes. Each change queues a read of the file on
+ * a small pool of threads, so many files can be followed at once without polling. Since some file
+ * systems do not report changes, every file is also checked once per poll interval.
+ * <p>
+ * A file that is renamed or deleted and then recreated (log rotation) is read to the end and then
+ * reopened from the start. A file that shrinks (truncation) is read again from the start. Lines
+ * go to {@link LineReader#process(List)}, or to process(ByteLine) one at a time for readers using
+ * byte lines. Readers get start() when following begins and done() when it stops.
+ * <p>
+ * Lines are terminated by "\n", "\r" or "\r\n", the same as BufferedReader.readLine(). Since
+ * lines are found by looking at the raw bytes, the encoding must be ASCII compatible.
+ */
+public class FileFollower
+{
+    public static final long DEFAULT_POLL_INTERVAL = 1000;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected int _threads;
+
+    protected long _pollInterval = DEFAULT_POLL_INTERVAL;
+
+    protected ExecutorService _executor;
+
+    protected WatchService _watcher;
+
+    protected Thread _watcherThread;
+
+    protected volatile boolean _closed;
+
+    protected List<Followed> _followed = new CopyOnWriteArrayList<Followed>();
+
+    /**
+     * The watch keys for the directories we have registered.
+     */
+    protected Map<Path, WatchKey> _directories = new ConcurrentHashMap<Path, WatchKey>();
+
+    public FileFollower ()
+    {
+        this(2);
+    }
+
+    /**
+     * Reads the followed files on the given number of threads.
+     */
+    public FileFollower (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Sets the most time, in milliseconds, between checks of a file, whether or not the file
+     * system reports a change.
+     */
+    public void setPollInterval (long pollInterval)
+    {
+        _pollInterval = pollInterval;
+    }
+
+    /**
+     * Follows a file from its current end, using the reader's default encoding.
+     */
+    public void follow (File file, LineReader reader)
+        throws IOException
+    {
+        follow(file, reader, null, false);
+    }
+
+    /**
+     * Follows a file. If fromStart is true, the lines already in the file are read first.
+     *
+     * @throws IllegalArgumentException
+     *             if the encoding is not ASCII compatible.
+     */
+    public synchronized void follow (File file, LineReader reader, String encoding,
+        boolean fromStart)
+        throws IOException
+    {
+        if (_closed) {
+            throw new IllegalStateException("The follower has been closed.");
+        }
+        Charset charset = Charset.forName(reader.getEncoding(encoding));
+        if (!ByteLine.isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("Can not follow a file in " + charset
+                + ", since it is not ASCII compatible.");
+        }
+        if (_executor == null) {
+            _watcher = FileSystems.getDefault().newWatchService();
+            // daemon threads, so that a follower that is never closed does not keep the JVM up
+            _executor = Executors.newFixedThreadPool(_threads,
+                new DaemonThreadFactory("FileFollower"));
+            _watcherThread = new Thread(new Runnable() {
+                @Override public void run () {
+                    watch();
+                }
+            }, "FileFollower");
+            _watcherThread.setDaemon(true);
+            _watcherThread.start();
+        }
+
+        file = file.getAbsoluteFile();
+        Path directory = file.getParentFile().toPath();
+        if (!_directories.containsKey(directory)) {
+            _directories.put(directory, directory.register(_watcher, ENTRY_CREATE, ENTRY_MODIFY,
+                ENTRY_DELETE));
+        }
+
+        Followed followed = new Followed(file, reader, charset);
+        reader.start(file);
+        followed.open(fromStart);
+        _followed.add(followed);
+        schedule(followed);
+    }
+
+    /**
+     * Stops following all files, reading whatever was appended to them first.
+     */
+    public synchronized void close ()
+    {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        if (_executor == null) {
+            return;
+        }
+
+        try {
+            _watcher.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Followed followed : _followed) {
+            followed.check();
+            followed.close();
+            followed._reader.done(followed._file);
+        }
+        _followed.clear();
+    }
+
+    /**
+     * Waits for changes in the watched directories and queues reads of the affected files.
+     */
+    protected void watch ()
+    {
+        try {
+            while (!_closed) {
+                WatchKey key = _watcher.poll(_pollInterval, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    // nothing reported, so check everything in case the file system is quiet
+                    for (Followed followed : _followed) {
+                        schedule(followed);
+                    }
+                    continue;
+                }
+
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    for (Followed followed : _followed) {
+                        if (context == null || followed.isIn(directory, context)) {
+                            schedule(followed);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException ex) {
+            // shutting down
+        } catch (ClosedWatchServiceException ex) {
+            // shutting down
+        }
+    }
+
+    protected void schedule (final Followed followed)
+    {
+        if (!_closed && followed._scheduled.compareAndSet(false, true)) {
+            _executor.execute(new Runnable() {
+                @Override public void run () {
+                    followed._scheduled.set(false);
+                    followed.check();
+                }
+            });
+        }
+    }
+
+    /**
+     * One followed file, along with the open channel and the unfinished last line.
+     */
+    protected static class Followed
+    {
+        protected File _file;
+
+        protected Path _path;
+
+        protected LineReader _reader;
+
+        protected Charset _charset;
+
+        protected FileChannel _channel;
+
+        /**
+         * Identifies the open file, so that we can tell when the path points at a new one.
+         */
+        protected Object _fileKey;
+
+        protected long _position;
+
+        /**
+         * Holds bytes read but not yet handed off, starting with the unfinished last line.
+         */
+        protected byte[] _buffer = new byte[BUFFER_SIZE];
+
+        protected int _length;
+
+        /**
+         * True if the last line handed off ended with a "\r", so a "\n" right after it is part
+         * of the same terminator.
+         */
+        protected boolean _skipNewline;
+
+        protected ByteLine _byteLine;
+
+        protected AtomicBoolean _scheduled = new AtomicBoolean();
+
+        public Followed (File file, LineReader reader, Charset charset)
+        {
+            _file = file;
+            _path = file.toPath();
+            _reader = reader;
+            _charset = charset;
+            if (reader._byteLines) {
+                _byteLine = new ByteLine(charset);
+            }
+        }
+
+        public boolean isIn (Path directory, Object name)
+        {
+            return _path.getParent().equals(directory) && _path.getFileName().equals(name);
+        }
+
+        /**
+         * Opens the file if it is there, positioned at the start or the end.
+         */
+        public synchronized void open (boolean fromStart)
+        {
+            try {
+                _channel = FileChannel.open(_path, StandardOpenOption.READ);
+                _fileKey = getFileKey();
+                _position = fromStart ? 0 : _channel.size();
+            } catch (IOException ex) {
+                // not there yet; we will open it once it is created
+                _channel = null;
+                _position = 0;
+            }
+            _length = 0;
+            _skipNewline = false;
+        }
+
+        /**
+         * Reads anything new, and reopens the file if it was rotated.
+         */
+        public synchronized void check ()
+        {
+            try {
+                if (_channel == null) {
+                    open(true);
+                    if (_channel == null) {
+                        return;
+                    }
+                }
+
+                if (_channel.size() < _position) {
+                    // truncated, so start over
+                    _position = 0;
+                    _length = 0;
+                    _skipNewline = false;
+                }
+                readLines();
+
+                Object key = getFileKey();
+                if (key != null && !key.equals(_fileKey)) {
+                    // rotated: the old file has been read to the end, so move on to the new one
+                    flushPartial();
+                    close();
+                    open(true);
+                    readLines();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        /**
+         * Reads from the current position to the end of the file and hands off the complete
+         * lines.
+         */
+        protected void readLines ()
+            throws IOException
+        {
+            List<String> lines = new ArrayList<String>();
+            while (true) {
+                if (_length == _buffer.length) {
+                    // one line fills the buffer, so make room for more of it
+                    _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+                }
+                int count = _channel.read(ByteBuffer.wrap(_buffer, _length,
+                    _buffer.length - _length), _position);
+                if (count <= 0) {
+                    break;
+                }
+                _position += count;
+                int start = 0;
+                int end = _length + count;
+                for (int i = _length; i < end; i++) {
+                    byte b = _buffer[i];
+                    if (_skipNewline) {
+                        _skipNewline = false;
+                        if (b == '\n') {
+                            start = i + 1;
+                            continue;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        handOff(start, i - start, lines);
+                        start = i + 1;
+                        _skipNewline = b == '\r';
+                    }
+                }
+                _length = end - start;
+                System.arraycopy(_buffer, start, _buffer, 0, _length);
+            }
+            if (!lines.isEmpty()) {
+                _reader.process(lines);
+            }
+        }
+
+        /**
+         * Hands off whatever is left of an old file that did not end with a newline.
+         */
+        protected void flushPartial ()
+        {
+            if (_length > 0) {
+                List<String> lines = new ArrayList<String>();
+                handOff(0, _length, lines);
+                if (!lines.isEmpty()) {
+                    _reader.process(lines);
+                }
+                _length = 0;
+            }
+        }
+
+        protected void handOff (int offset, int length, List<String> lines)
+        {
+            if (_byteLine != null) {
+                _byteLine.set(_buffer, offset, length);
+                _reader.process(_byteLine);
+            } else {
+                lines.add(new String(_buffer, offset, length, _charset));
+            }
+        }
+
+        /**
+         * Returns the identity of the file currently at our path, or null if there is none.
+         */
+        protected Object getFileKey ()
+        {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(_path,
+                    BasicFileAttributes.class);
+                Object key = attributes.fileKey();
+                // without file keys, fall back to the creation time
+                return key != null ? key : attributes.creationTime();
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        public synchronized void close ()
+        {
+            if (_channel != null) {
+                try {
+                    _channel.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                _channel = null;
+            }
+        }
+    }
+
+    /**
+     * Follows the given files, printing new lines to stdout, until killed.
+     */
+    public static void main (String[] args)
+    {
+        try {
+            FileFollower follower = new FileFollower();
+            for (String path : args) {
+                follower.follow(new File(path), new Cat());
+            }
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
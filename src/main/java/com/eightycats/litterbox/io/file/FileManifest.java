@@ -0,0 +1,258 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the size, last modified time and, optionally, a content hash of a set of files, so
+ * that a later run can tell which of them are new or have changed. The manifest is saved as a
+ * text file with one tab separated line per file: size, modified time, hash and path.
+ * <p>
+ * Saves are atomic: the manifest is written to a temp file next to it, synced, and renamed over
+ * the old one. A run that crashes leaves the last saved manifest intact. Records can be added from
+ * several threads at once.
+ */
+public class FileManifest
+{
+    /**
+     * The hash stored when content hashing is off.
+     */
+    protected static final long NO_HASH = -1;
+
+    protected File _file;
+
+    protected boolean _hashContents;
+
+    protected Map<String, Record> _records = new ConcurrentHashMap<String, Record>();
+
+    /**
+     * The paths checked since the manifest was loaded.
+     */
+    protected Set<String> _seen = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The size, modified time and hash of one file.
+     */
+    protected static class Record
+    {
+        public long size;
+
+        public long lastModified;
+
+        public long hash;
+
+        public Record (long size, long lastModified, long hash)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Creates a manifest that is kept in the given file. Call load() to read what is already
+     * there.
+     */
+    public FileManifest (File file)
+    {
+        _file = file;
+    }
+
+    /**
+     * If true, files whose size or time changed are also compared by a CRC of their contents,
+     * so files that were only touched are not treated as changed.
+     */
+    public void setHashContents (boolean hashContents)
+    {
+        _hashContents = hashContents;
+    }
+
+    public File getFile ()
+    {
+        return _file;
+    }
+
+    public int size ()
+    {
+        return _records.size();
+    }
+
+    /**
+     * Reads the saved manifest, if there is one.
+     */
+    public void load ()
+        throws IOException
+    {
+        _records.clear();
+        _seen.clear();
+        if (!_file.exists()) {
+            return;
+        }
+
+        BufferedReader input = new BufferedReader(new InputStreamReader(new FileInputStream(
+            _file), StandardCharsets.UTF_8));
+        try {
+            String line = input.readLine();
+            while (line != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    _records.put(fields[3], new Record(Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+                line = input.readLine();
+            }
+        } catch (NumberFormatException ex) {
+            throw new IOException("Corrupt manifest " + _file.getPath(), ex);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Atomically replaces the saved manifest with the current records.
+     */
+    public synchronized void save ()
+        throws IOException
+    {
+        File temp = FileUtils.createSiblingTempFile(_file);
+        try {
+            Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                StandardCharsets.UTF_8));
+            try {
+                for (Map.Entry<String, Record> entry : _records.entrySet()) {
+                    Record record = entry.getValue();
+                    output.write(record.size + "\t" + record.lastModified + "\t" + record.hash
+                        + "\t" + entry.getKey() + "\n");
+                }
+            } finally {
+                output.close();
+            }
+            FileUtils.replaceAtomically(temp, _file, true);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Checks whether the file is new or has changed since it was last recorded.
+     */
+    public boolean isChanged (File file)
+        throws IOException
+    {
+        String path = getKey(file);
+        _seen.add(path);
+        Record record = _records.get(path);
+        if (record == null) {
+            return true;
+        }
+        if (record.size == file.length() && record.lastModified == file.lastModified()) {
+            return false;
+        }
+        if (_hashContents && record.hash != NO_HASH && record.size == file.length()
+            && record.hash == hash(file)) {
+            // same contents, just touched, so remember the new time
+            record.lastModified = file.lastModified();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the current state of the file, marking it as processed.
+     */
+    public void update (File file)
+        throws IOException
+    {
+        update(file, file.length(), file.lastModified());
+    }
+
+    /**
+     * Records the file as processed, as it was when processing started. If it has changed since,
+     * the next run sees it as changed.
+     */
+    public void update (File file, long size, long lastModified)
+        throws IOException
+    {
+        String path = getKey(file);
+        _seen.add(path);
+        long hash = NO_HASH;
+        if (_hashContents) {
+            hash = hash(file);
+            if (file.length() != size || file.lastModified() != lastModified) {
+                // the hash is of the new contents, not the ones processed
+                hash = NO_HASH;
+            }
+        }
+        _records.put(path, new Record(size, lastModified, hash));
+    }
+
+    /**
+     * Drops the records of files that have not been checked or updated since the manifest was
+     * loaded, such as files that have been deleted.
+     */
+    public void removeUnseen ()
+    {
+        Iterator<String> paths = _records.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!_seen.contains(paths.next())) {
+                paths.remove();
+            }
+        }
+    }
+
+    protected String getKey (File file)
+    {
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Returns a CRC32 of the file's contents.
+     */
+    public static long hash (File file)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream input = new FileInputStream(file);
+        try {
+            int count = input.read(buffer);
+            while (count > -1) {
+                crc.update(buffer, 0, count);
+                count = input.read(buffer);
+            }
+        } finally {
+            input.close();
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Selects files in a directory tree by name, using a compiled regular expression or a glob, and
+ * does something with each of them. Directories are walked in parallel on a fork/join pool, and
+ * each selected file is handed to a {@link Handler} as soon as it is found, on whichever worker
+ * thread found it. Directories themselves are only selected if asked for.
+ */
+public class FileSelector
+{
+    /**
+     * Gets called with each selected file. May be called from several threads at once.
+     */
+    public interface Handler
+    {
+        void select (File file) throws IOException;
+    }
+
+    /**
+     * Matches file names, or null to select every file.
+     */
+    protected Pattern _pattern;
+
+    /**
+     * Matches file names, used instead of a regular expression for globs.
+     */
+    protected PathMatcher _glob;
+
+    /**
+     * The default number of threads, used by the shared pool.
+     */
+    protected static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The pool used by every selector that has not been given its own number of threads, so that
+     * things like FileUtils.delete() do not start up a new pool on every call.
+     */
+    protected static ForkJoinPool _sharedPool;
+
+    protected boolean _recurse = true;
+
+    /**
+     * If true, directories whose names match are selected as a whole instead of being walked.
+     */
+    protected boolean _selectDirectories;
+
+    /**
+     * The number of threads, or zero to use the shared pool.
+     */
+    protected int _threads;
+
+    /**
+     * Selects every file.
+     */
+    public FileSelector ()
+    {
+    }
+
+    /**
+     * Selects files whose whole name matches the given pattern.
+     */
+    public FileSelector (Pattern pattern)
+    {
+        _pattern = pattern;
+    }
+
+    /**
+     * Selects files whose names match the given matcher.
+     */
+    public FileSelector (PathMatcher glob)
+    {
+        _glob = glob;
+    }
+
+    /**
+     * Selects files whose whole name matches the given regular expression.
+     */
+    public static FileSelector regex (String regex)
+    {
+        return new FileSelector(Pattern.compile(regex));
+    }
+
+    /**
+     * Selects files whose names match the given glob, e.g. "*.{log,txt}".
+     */
+    public static FileSelector glob (String glob)
+    {
+        return new FileSelector(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * If false, only the files directly in the root directory are selected. Defaults to true.
+     */
+    public void setRecurse (boolean recurse)
+    {
+        _recurse = recurse;
+    }
+
+    /**
+     * If true, a directory whose name matches is handed to the handler, and its contents are not
+     * looked at. Defaults to false, where only files are selected.
+     */
+    public void setSelectDirectories (boolean selectDirectories)
+    {
+        _selectDirectories = selectDirectories;
+    }
+
+    /**
+     * Sets the number of threads walking the tree and running handlers. By default, selectors
+     * share one pool.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Checks whether the given file's name is selected.
+     */
+    public boolean matches (File file)
+    {
+        if (_pattern != null) {
+            return _pattern.matcher(file.getName()).matches();
+        }
+        if (_glob != null) {
+            return _glob.matches(file.toPath().getFileName());
+        }
+        return true;
+    }
+
+    /**
+     * Hands every selected file under the root directory to the handler. If the handler throws
+     * an exception, no more files are handed out, and the first exception is thrown from here.
+     */
+    public void select (File root, Handler handler)
+        throws IOException
+    {
+        AtomicReference<IOException> error = new AtomicReference<IOException>();
+        ForkJoinPool pool = createPool();
+        try {
+            pool.invoke(new SelectTask(root, handler, error));
+        } finally {
+            release(pool);
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Returns all of the selected files under the root directory, in no particular order.
+     */
+    public List<File> list (File root)
+        throws IOException
+    {
+        final List<File> results = Collections.synchronizedList(new ArrayList<File>());
+        select(root, new Handler() {
+            @Override public void select (File file) {
+                results.add(file);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Copies the selected files into the target directory, keeping their paths relative to the
+     * root. The handler, if any, gets each source file after it has been copied.
+     */
+    public void copy (final File root, final File targetDir, final Handler copied)
+        throws IOException
+    {
+        select(root, new Handler() {
+            @Override public void select (File file) throws IOException {
+                File target = new File(targetDir, FileUtils.getRelativePath(root, file));
+                FileUtils.makeParentDirs(target);
+                FileCopier.transfer(file, target);
+                if (copied != null) {
+                    copied.select(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the selected files into the target directory, keeping their paths relative to the
+     * root. The handler, if any, gets each source file after it has been moved.
+     */
+    public void move (final File root, final File targetDir, final Handler moved)
+        throws IOException
+    {
+        select(root, new Handler() {
+            @Override public void select (File file) throws IOException {
+                File target = new File(targetDir, FileUtils.getRelativePath(root, file));
+                FileUtils.makeParentDirs(target);
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (moved != null) {
+                    moved.select(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the selected files. The handler, if any, gets each file after it has been deleted.
+     */
+    public void delete (File root, final Handler deleted)
+        throws IOException
+    {
+        select(root, new Handler() {
+            @Override public void select (File file) throws IOException {
+                Path path = file.toPath();
+                Files.delete(path);
+                if (deleted != null) {
+                    deleted.select(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes a file or a whole directory tree, deleting the subdirectories in parallel.
+     *
+     * @return true if everything was deleted.
+     */
+    public boolean deleteTree (File file)
+    {
+        if (!file.isDirectory()) {
+            return file.delete();
+        }
+        DeleteTask task = new DeleteTask(file);
+        if (!hasSubdirectories(file)) {
+            // nothing to do in parallel
+            return task.compute();
+        }
+        ForkJoinPool pool = createPool();
+        try {
+            return pool.invoke(task);
+        } finally {
+            release(pool);
+        }
+    }
+
+    /**
+     * Returns the shared pool, or a new pool if this selector has its own number of threads.
+     */
+    protected ForkJoinPool createPool ()
+    {
+        if (_threads > 0) {
+            return new ForkJoinPool(_threads);
+        }
+        synchronized (FileSelector.class) {
+            if (_sharedPool == null) {
+                // the pool's worker threads are daemons, so it never needs to be shut down
+                _sharedPool = new ForkJoinPool(THREADS);
+            }
+            return _sharedPool;
+        }
+    }
+
+    /**
+     * Shuts down the given pool, unless it is the shared one.
+     */
+    protected void release (ForkJoinPool pool)
+    {
+        if (pool != _sharedPool) {
+            pool.shutdown();
+        }
+    }
+
+    protected static boolean hasSubdirectories (File dir)
+    {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Selects the files in one directory and forks off tasks for its subdirectories.
+     */
+    protected class SelectTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected File _dir;
+
+        protected Handler _handler;
+
+        protected AtomicReference<IOException> _error;
+
+        public SelectTask (File dir, Handler handler, AtomicReference<IOException> error)
+        {
+            _dir = dir;
+            _handler = handler;
+            _error = error;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            File[] children = _dir.listFiles();
+            if (children == null) {
+                return;
+            }
+
+            List<SelectTask> subdirs = new ArrayList<SelectTask>();
+            for (File child : children) {
+                if (_error.get() != null) {
+                    return;
+                }
+                if (child.isDirectory() && !(_selectDirectories && matches(child))) {
+                    if (_recurse) {
+                        SelectTask task = new SelectTask(child, _handler, _error);
+                        task.fork();
+                        subdirs.add(task);
+                    }
+                } else if (matches(child)) {
+                    try {
+                        _handler.select(child);
+                    } catch (IOException ex) {
+                        _error.compareAndSet(null, ex);
+                    }
+                }
+            }
+
+            for (SelectTask task : subdirs) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Deletes the contents of a directory, forking off tasks for its subdirectories, and then
+     * deletes the directory itself.
+     */
+    protected static class DeleteTask extends RecursiveTask<Boolean>
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected File _dir;
+
+        public DeleteTask (File dir)
+        {
+            _dir = dir;
+        }
+
+        @Override
+        protected Boolean compute ()
+        {
+            boolean success = true;
+            File[] children = _dir.listFiles();
+            if (children != null) {
+                List<DeleteTask> subdirs = new ArrayList<DeleteTask>();
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        DeleteTask task = new DeleteTask(child);
+                        task.fork();
+                        subdirs.add(task);
+                    } else if (!child.delete()) {
+                        success = false;
+                    }
+                }
+                for (DeleteTask task : subdirs) {
+                    if (!task.join()) {
+                        success = false;
+                    }
+                }
+            }
+
+            // The directory is now empty and can be deleted.
+            return success && _dir.delete();
+        }
+    }
+}
@@ -14,23 +14,20 @@
 
 package com.eightycats.litterbox.io.file;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.util.regex.Matcher;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import com.eightycats.litterbox.io.StreamUtils;
 import com.eightycats.litterbox.logging.Logger;
 
 /**
@@ -38,6 +35,13 @@ import com.eightycats.litterbox.logging.Logger;
  */
 public class FileUtils
 {
+    /**
+     * When inserting, tails of files up to this size are held in memory instead of a temp file.
+     */
+    protected static final int MEMORY_TAIL_SIZE = 4 * 1024 * 1024;
+
+    protected static final int TRANSFER_BUFFER_SIZE = 1024 * 1024;
+
     /**
      * Moves a file to a give directory.
      *
@@ -154,51 +158,30 @@ public class FileUtils
         }
     }
 
+    /**
+     * Copies the contents of one file to another. The bytes are moved with a channel transfer, so
+     * they do not need to pass through the JVM.
+     */
     public static void copyFile (File source, File destination) throws FileNotFoundException,
         IOException
     {
         // make sure the parent destination directories exists
         makeParentDirs(destination);
 
-        InputStream in = new FileInputStream(source);
-        try {
-            OutputStream out = new FileOutputStream(destination);
-            try {
-                StreamUtils.copy(in, out);
-            } finally {
-                StreamUtils.close(out);
-            }
-
-        } finally {
-            in.close();
-        }
+        FileCopier.transfer(source, destination);
     }
 
+    /**
+     * Copies a directory tree, copying the files on several threads. Use a {@link FileCopier}
+     * directly to preserve timestamps or get copy statistics.
+     */
     public static void deepCopy (File source, File destination) throws IOException
     {
         if (source.isDirectory()) {
-            // make sure that the destination dir is not an existing file
-            if (destination.exists() && !destination.isDirectory()) {
-                throw new IOException("Could not copy directory [" + source.getPath()
-                    + "]. The target file [" + destination.getPath() + "] already exists.");
-
-            }
-
-            // make sure the destination dir exists
-            destination.mkdirs();
-
-            File[] children = source.listFiles();
-            for (int i = 0; i < children.length; i++) {
-                // create a destination file with the same name
-                // as the source child file
-                File childDestination = new File(destination.getPath(), children[i].getName());
-                deepCopy(children[i], childDestination);
-            }
-
+            new FileCopier().copyTree(source, destination);
         } else {
             copyFile(source, destination);
         }
-
     }
 
     public static boolean delete (String path)
@@ -214,22 +197,14 @@ public class FileUtils
         return success;
     }
 
+    /**
+     * Deletes a file or directory tree. Subdirectories are deleted in parallel.
+     *
+     * @return true if everything was deleted.
+     */
     public static boolean delete (File file)
     {
-        boolean success = true;
-
-        if (file.isDirectory()) {
-            File[] children = file.listFiles();
-
-            for (int i = 0; i < children.length; i++) {
-                if (!delete(children[i])) {
-                    success = false;
-                }
-            }
-        }
-
-        // The directory is a file or is now empty and can be deleted.
-        return success && file.delete();
+        return new FileSelector().deleteTree(file);
     }
 
     public static void makeParentDirs (File file)
@@ -240,68 +215,245 @@ public class FileUtils
         }
     }
 
+    /**
+     * Creates an empty temp file in the same directory as the given file, so that it can later
+     * be renamed over that file.
+     */
+    public static File createSiblingTempFile (File file)
+        throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        return File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+    }
+
+    /**
+     * Renames the source file over the target. If the file system supports it, the rename is
+     * atomic, so anyone opening the target sees either the old file or the new one and never a
+     * partial write. If sync is true, the source is forced to disk first, so that a crash cannot
+     * leave the target renamed but empty. The new file keeps the target's permissions.
+     */
+    public static void replaceAtomically (File source, File target, boolean sync)
+        throws IOException
+    {
+        if (sync) {
+            sync(source);
+        }
+        if (target.exists()) {
+            try {
+                Files.setPosixFilePermissions(source.toPath(),
+                    Files.getPosixFilePermissions(target.toPath()));
+            } catch (UnsupportedOperationException ex) {
+                // not a POSIX file system
+            }
+        }
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces the contents of a file to disk.
+     */
+    public static void sync (File file)
+        throws IOException
+    {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.getChannel().force(true);
+        } finally {
+            output.close();
+        }
+    }
+
     public static String getWorkingDir ()
     {
         return System.getProperty("user.dir", ".");
     }
 
+    /**
+     * Inserts text into a file at the given byte offset. The text is encoded with the platform
+     * default charset. Only the part of the file after the offset gets rewritten.
+     */
     public static void insert (String filePath, String text, long offset)
         throws FileNotFoundException, IOException
     {
-        File file = new File(filePath);
-        FileReader fileReader = new FileReader(file);
-        BufferedReader reader = new BufferedReader(fileReader);
-
-        File temp = File.createTempFile("insert", "txt");
-        FileWriter writer = new FileWriter(temp);
-        PrintWriter output = new PrintWriter(writer);
+        insert(new File(filePath), text.getBytes(Charset.defaultCharset()), offset);
+    }
 
-        // skip ahead to the offset or the end of the file,
-        // whichever comes first
-        offset = Math.min(offset, file.length());
+    /**
+     * Inserts bytes into a file at the given offset. If the offset is past the end of the file,
+     * the bytes are appended. Everything after the offset is saved off (in memory if it is small,
+     * otherwise to a temp file using channel transfers), the new bytes are written at the offset,
+     * and the saved tail is written back after them.
+     */
+    public static void insert (File file, byte[] data, long offset)
+        throws FileNotFoundException, IOException
+    {
+        if (!file.exists()) {
+            throw new FileNotFoundException("File [" + file.getPath() + "] does not exist.");
+        }
 
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
         try {
-            char[] next = new char[1];
-            int read = reader.read(next);
-            long total = 0;
-
-            while (read > -1 && total < offset) {
-                output.print(next);
-                total += read;
-                read = reader.read(next);
+            FileChannel channel = output.getChannel();
+            long size = channel.size();
+            offset = Math.max(0, Math.min(offset, size));
+            long tailLength = size - offset;
+
+            if (tailLength <= MEMORY_TAIL_SIZE) {
+                ByteBuffer tail = ByteBuffer.allocate((int) tailLength);
+                while (tail.hasRemaining()) {
+                    if (channel.read(tail, offset + tail.position()) < 0) {
+                        throw new IOException("Unexpected end of file [" + file.getPath() + "]");
+                    }
+                }
+                tail.flip();
+                write(channel, ByteBuffer.wrap(data), offset);
+                write(channel, tail, offset + data.length);
+
+            } else {
+                File temp = createSiblingTempFile(file);
+                RandomAccessFile tail = new RandomAccessFile(temp, "rw");
+                try {
+                    FileChannel tailChannel = tail.getChannel();
+                    transfer(channel, offset, tailChannel, 0, tailLength, file);
+                    write(channel, ByteBuffer.wrap(data), offset);
+                    transfer(tailChannel, 0, channel, offset + data.length, tailLength, temp);
+                } finally {
+                    tail.close();
+                    temp.delete();
+                }
             }
+        } finally {
+            output.close();
+        }
+    }
 
-            output.print(text);
+    public static void deleteRange (String filePath, long offset, long length)
+        throws FileNotFoundException, IOException
+    {
+        deleteRange(new File(filePath), offset, length);
+    }
 
-            while (read > -1) {
-                output.print(next);
-                read = reader.read(next);
-            }
+    /**
+     * Removes a range of bytes from a file. Everything after the range is shifted down over it and
+     * the file is truncated. Nothing before the offset is touched. This copies through a buffer
+     * rather than transferring from the file's channel to itself, since transfers between
+     * overlapping regions of the same file are not well defined.
+     */
+    public static void deleteRange (File file, long offset, long length)
+        throws FileNotFoundException, IOException
+    {
+        if (!file.exists()) {
+            throw new FileNotFoundException("File [" + file.getPath() + "] does not exist.");
+        }
 
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            long size = channel.size();
+            offset = Math.max(0, Math.min(offset, size));
+            long end = Math.min(size, offset + Math.max(0, length));
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+            long read = end;
+            long written = offset;
+            while (read < size) {
+                buffer.clear();
+                int count = channel.read(buffer, read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+                buffer.flip();
+                written += write(channel, buffer, written);
+            }
+            channel.truncate(size - (end - offset));
         } finally {
-            StreamUtils.close(output);
-            reader.close();
+            output.close();
         }
+    }
 
-        // copy the temp file back over the original file
-        copy(temp, file);
+    /**
+     * Writes all of the given bytes at the given position in the channel.
+     */
+    /**
+     * Copies a range of bytes from one channel to a position in another, using channel transfers.
+     * If a transfer makes no progress, the rest is copied through a buffer.
+     */
+    protected static void transfer (FileChannel source, long sourcePosition, FileChannel target,
+        long targetPosition, long length, File sourceFile)
+        throws IOException
+    {
+        long copied = 0;
+        target.position(targetPosition);
+        while (copied < length) {
+            long count = source.transferTo(sourcePosition + copied, length - copied, target);
+            if (count <= 0) {
+                break;
+            }
+            copied += count;
+        }
+
+        ByteBuffer buffer = null;
+        while (copied < length) {
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE,
+                    length - copied));
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - copied));
+            if (source.read(buffer, sourcePosition + copied) < 0) {
+                throw new IOException("Unexpected end of file [" + sourceFile.getPath() + "]");
+            }
+            buffer.flip();
+            copied += write(target, buffer, targetPosition + copied);
+        }
+    }
 
-        temp.delete();
+    protected static int write (FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += channel.write(buffer, position + total);
+        }
+        return total;
     }
 
+    /**
+     * Replaces all matches of the given regular expression in a UTF-8 file, in place. Matches may
+     * span lines but should be no more than {@link StreamingReplace#DEFAULT_MAX_MATCH} characters
+     * long.
+     */
     public static void replace (String filePath, String regexPattern, String replacement)
         throws FileNotFoundException, IOException
     {
-        // Since we are reading the whole file into memory,
-        // this will run out of memory if the file specified is too big.
-        String content = WholeFile.readFile(filePath);
-
-        Pattern pattern = Pattern.compile(regexPattern);
-        Matcher matcher = pattern.matcher(content);
+        replace(filePath, regexPattern, replacement, StreamingReplace.DEFAULT_MAX_MATCH);
+    }
 
-        content = matcher.replaceAll(replacement);
+    /**
+     * Replaces all matches of the given regular expression in a UTF-8 file, in place. The file is
+     * streamed through a sliding window, so memory use does not depend on the file size.
+     *
+     * @param maxMatchLength
+     *            the longest match, in characters, that is guaranteed to be found whole.
+     */
+    public static void replace (String filePath, String regexPattern, String replacement,
+        int maxMatchLength)
+        throws FileNotFoundException, IOException
+    {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new FileNotFoundException("File [" + filePath + "] does not exist.");
+        }
 
-        WholeFile.writeFile(filePath, content);
+        Pattern pattern = Pattern.compile(regexPattern);
+        new StreamingReplace(pattern, replacement, maxMatchLength).replace(file, null);
     }
 
     /**
@@ -416,30 +568,37 @@ public class FileUtils
     public static String regexCopy (String inputDir, String outputDir, String regex)
     {
         File source = new File(inputDir);
-        File target = new File(outputDir);
-        String retVal = "";
+        final File target = new File(outputDir);
         if (!source.isDirectory() || !target.isDirectory()) {
             // Not sure of what to do here ...
             // Should throw exception?
             return "";
         }
-        File[] files = source.listFiles(getFilter(regex));
 
-        if (files.length == 0) {
-            return "The list of files is empty - bad regex probably";
+        final StringBuffer retVal = new StringBuffer();
+        try {
+            // matching directories are copied as a whole
+            FileSelector selector = getSelector(regex);
+            selector.setRecurse(false);
+            selector.setSelectDirectories(true);
+            selector.select(source, new FileSelector.Handler() {
+                @Override public void select (File file) {
+                    try {
+                        copy(file, target);
+                        retVal.append("\n").append(file.getName());
+                    } catch (IOException io) {
+                        io.printStackTrace(System.err);
+                    }
+                }
+            });
+        } catch (IOException io) {
+            io.printStackTrace(System.err);
         }
 
-        for (int i = 0; i < files.length; ++i) {
-            try {
-                copy(files[i], target);
-                retVal += ("\n" + files[i].getName());
-            } catch (FileNotFoundException fnf) {
-                fnf.printStackTrace(System.err);
-            } catch (IOException io) {
-                io.printStackTrace(System.err);
-            }
+        if (retVal.length() == 0) {
+            return "The list of files is empty - bad regex probably";
         }
-        return retVal;
+        return retVal.toString();
     }
 
     /**
@@ -455,25 +614,46 @@ public class FileUtils
     public static String regexDelete (String dir, String regex)
     {
         File source = new File(dir);
-        String retVal = "";
         if (!source.isDirectory()) {
             return "";
         }
-        File[] files = source.listFiles(getFilter(regex));
 
-        if (files.length == 0) {
+        final StringBuffer retVal = new StringBuffer();
+        try {
+            // Directories are never selected
+            FileSelector selector = getSelector(regex);
+            selector.setRecurse(false);
+            selector.select(source, new FileSelector.Handler() {
+                @Override public void select (File file) {
+                    delete(file);
+                    retVal.append("\n").append(file.getName());
+                }
+            });
+        } catch (IOException io) {
+            io.printStackTrace(System.err);
+        }
+
+        if (retVal.length() == 0) {
             return "The list of files is empty - possibly bad regex expression";
         }
+        return retVal.toString();
+    }
 
-        for (int i = 0; i < files.length; ++i) {
-            // Skip directories
-            if (files[i].isDirectory()) {
-                continue;
-            }
-            delete(files[i]);
-            retVal += ("\n" + files[i].getName());
+    /**
+     * Creates a selector for the regex methods. The regex must match the whole file name. If the
+     * regex is not valid, nothing gets selected.
+     */
+    protected static FileSelector getSelector (String regex)
+    {
+        try {
+            return FileSelector.regex(regex);
+        } catch (PatternSyntaxException pse) {
+            return new FileSelector() {
+                @Override public boolean matches (File file) {
+                    return false;
+                }
+            };
         }
-        return retVal;
     }
 
     /**
@@ -487,29 +667,14 @@ public class FileUtils
      */
     protected static FilenameFilter getFilter (final String regex)
     {
+        final FileSelector selector = getSelector(regex);
+
         return new FilenameFilter() {
 
             @Override
             public boolean accept (File dir, String name)
             {
-                //
-                try {
-                    if (Pattern.matches(regex, name)) {
-                        return true;
-                    }
-
-                    /*
-                     * This code supports matching to a substring in the filename. This is alternate
-                     * code in case the default behavior is unsuitable.
-                     *
-                     * Pattern pattern = Pattern.compile(regex); Matcher matcher =
-                     * pattern.matcher(name); if ( matcher.find()) { return true; }
-                     */
-                } catch (PatternSyntaxException pse) {
-                    // If exception is thrown return false.
-                    return false;
-                }
-                return false;
+                return selector.matches(new File(dir, name));
             }
         };
     }
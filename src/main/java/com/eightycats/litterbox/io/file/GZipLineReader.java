@@ -14,23 +14,25 @@
 
 package com.eightycats.litterbox.io.file;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 
 /**
- * Reads a gzipped text file and processes it line by line.
+ * Reads a gzipped text file and processes it line by line. Block gzipped (BGZF) files are
+ * inflated in parallel by a {@link BlockGZipInputStream}.
  */
 public abstract class GZipLineReader extends LineReader
 {
     @Override
-    protected BufferedReader createReader (File file, String encoding)
+    protected InputStream createInputStream (File file)
         throws IOException
     {
-        return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(
-            file)), encoding));
+        if (BlockGZipIndex.isBlockGZip(file)) {
+            return new BlockGZipInputStream(file);
+        }
+        return new GZIPInputStream(new FileInputStream(file));
     }
 }
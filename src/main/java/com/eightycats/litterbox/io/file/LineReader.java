@@ -15,19 +15,61 @@
 package com.eightycats.litterbox.io.file;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * Base class for reading a text file line by line.
+ * <p>
+ * Long reads can be checkpointed. With a checkpoint interval set, the byte offset of the next
+ * line, along with whatever state a subclass adds in {@link #saveState(Properties)}, is saved
+ * every so many bytes to a ".checkpoint" file next to the input. If the read dies, the next read
+ * of the same file restores the state and picks up from that offset. The checkpoint file is
+ * removed once the whole file has been read.
  */
 public abstract class LineReader
     implements FileReader
 {
+    public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+    /**
+     * The checkpoint property holding the byte offset to resume from.
+     */
+    public static final String OFFSET = "offset";
+
+    /**
+     * The checkpoint properties holding the size and modification time of the input file, so
+     * that a checkpoint is only used for the same input.
+     */
+    public static final String INPUT_LENGTH = "input.length";
+
+    public static final String INPUT_MODIFIED = "input.modified";
+
+    /**
+     * If true, lines are handed to {@link #process(ByteLine)} as views over the read buffer
+     * instead of being decoded into Strings first.
+     */
+    protected boolean _byteLines;
+
+    /**
+     * The number of bytes read between checkpoints, or 0 for no checkpoints.
+     */
+    protected long _checkpointInterval;
+
+    /**
+     * The exception that ended the last read, if it failed.
+     */
+    protected IOException _readError;
+
     @Override
     public void read (String filePath)
     {
@@ -38,31 +80,229 @@ public abstract class LineReader
     public void read (String filePath, String encoding)
     {
         File file = new File(filePath);
+        _readError = null;
+        checkEncoding(getEncoding(encoding));
         start(file);
         try {
-            BufferedReader in = createReader(file, getEncoding(encoding));
-            try {
-                String line = in.readLine();
-                while (line != null) {
-                    process(line);
-                    line = in.readLine();
-                }
-            } finally {
-                in.close();
-            }
+            readContent(file, encoding);
 
         } catch (FileNotFoundException ex) {
+            _readError = ex;
             ex.printStackTrace();
         } catch (IOException ex) {
+            _readError = ex;
             ex.printStackTrace();
         }
         done(file);
     }
 
+    /**
+     * Returns the exception that cut the last read() short, or null if the whole file was read.
+     */
+    public IOException getReadError ()
+    {
+        return _readError;
+    }
+
+    /**
+     * Passes the file's lines to process() without the start() and done() callouts, so that the
+     * lines of several files can go into one set of results.
+     */
+    protected void readContent (File file, String encoding)
+        throws IOException, FileNotFoundException
+    {
+        if (_checkpointInterval > 0) {
+            readCheckpointed(file, getEncoding(encoding));
+        } else if (_byteLines) {
+            readBytes(file, getEncoding(encoding));
+        } else {
+            readLines(file, getEncoding(encoding));
+        }
+    }
+
+    /**
+     * Reads the file a line at a time, decoding each line into a String.
+     */
+    protected void readLines (File file, String encoding)
+        throws IOException, FileNotFoundException
+    {
+        BufferedReader in = createReader(file, encoding);
+        try {
+            String line = in.readLine();
+            while (line != null) {
+                process(line);
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the file a line at a time without decoding the lines. Encodings that are not ASCII
+     * compatible can not be split on bytes, so those files are read with readLines() instead.
+     */
+    protected void readBytes (File file, String encoding)
+        throws IOException, FileNotFoundException
+    {
+        Charset charset = Charset.forName(encoding);
+        if (!ByteLine.isAsciiCompatible(charset)) {
+            readLines(file, encoding);
+            return;
+        }
+        ByteLineScanner in = new ByteLineScanner(createInputStream(file), charset);
+        try {
+            ByteLine line = in.next();
+            while (line != null) {
+                process(line);
+                line = in.next();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the file a line at a time, resuming from the last checkpoint if there is one, and
+     * saving a new checkpoint every checkpoint interval bytes.
+     */
+    protected void readCheckpointed (File file, String encoding)
+        throws IOException, FileNotFoundException
+    {
+        checkEncoding(encoding);
+        long offset = 0;
+        Properties checkpoint = loadCheckpoint(file);
+        if (checkpoint != null) {
+            offset = Long.parseLong(checkpoint.getProperty(OFFSET));
+            restoreState(checkpoint);
+        }
+
+        InputStream input = createInputStream(file);
+        skipFully(input, offset);
+        ByteLineScanner in = new ByteLineScanner(input, Charset.forName(encoding), offset);
+        try {
+            long next = offset + _checkpointInterval;
+            ByteLine line = in.next();
+            while (line != null) {
+                if (_byteLines) {
+                    process(line);
+                } else {
+                    process(line.toString());
+                }
+                if (in.getPosition() >= next) {
+                    checkpoint(file, in.getPosition());
+                    next = in.getPosition() + _checkpointInterval;
+                }
+                line = in.next();
+            }
+        } finally {
+            in.close();
+        }
+        getCheckpointFile(file).delete();
+    }
+
+    /**
+     * Returns the saved checkpoint for the given file, or null if checkpoints are off or there is
+     * no usable checkpoint.
+     */
+    protected Properties loadCheckpoint (File file)
+    {
+        File checkpointFile = getCheckpointFile(file);
+        if (_checkpointInterval <= 0 || !checkpointFile.exists()) {
+            return null;
+        }
+        try {
+            Properties checkpoint = PropertiesFile.readProperties(checkpointFile.getPath());
+            String offset = checkpoint.getProperty(OFFSET);
+            String length = checkpoint.getProperty(INPUT_LENGTH);
+            String modified = checkpoint.getProperty(INPUT_MODIFIED);
+            // a checkpoint for some other version of the file can not be resumed from
+            if (offset != null && length != null && modified != null
+                && Long.parseLong(length) == file.length()
+                && Long.parseLong(modified) == file.lastModified()) {
+                return checkpoint;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (NumberFormatException ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Atomically saves a checkpoint at the given byte offset.
+     */
+    protected void checkpoint (File file, long offset)
+        throws IOException
+    {
+        Properties checkpoint = new Properties();
+        saveState(checkpoint);
+        checkpoint.setProperty(OFFSET, Long.toString(offset));
+        checkpoint.setProperty(INPUT_LENGTH, Long.toString(file.length()));
+        checkpoint.setProperty(INPUT_MODIFIED, Long.toString(file.lastModified()));
+
+        File checkpointFile = getCheckpointFile(file);
+        File temp = FileUtils.createSiblingTempFile(checkpointFile);
+        try {
+            PropertiesFile.writeProperties(temp.getPath(), checkpoint);
+            FileUtils.replaceAtomically(temp, checkpointFile, true);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Callout when a checkpoint is taken. Subclasses add whatever they need to pick up where
+     * they left off, and should call super.saveState(). Everything processed so far must be
+     * captured, since the read resumes right after the last line processed.
+     */
+    protected void saveState (Properties state)
+        throws IOException
+    {
+    }
+
+    /**
+     * Callout before resuming from a checkpoint, with the state saved by saveState().
+     */
+    protected void restoreState (Properties state)
+        throws IOException
+    {
+    }
+
+    public static File getCheckpointFile (File file)
+    {
+        return new File(file.getPath() + CHECKPOINT_EXTENSION);
+    }
+
+    protected static void skipFully (InputStream input, long count)
+        throws IOException
+    {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("Checkpoint offset is past the end of the input.");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
     protected BufferedReader createReader (File file, String encoding)
         throws IOException, FileNotFoundException
     {
-        return new BufferedReader(new InputStreamReader(new FileInputStream(file), encoding));
+        return new BufferedReader(new InputStreamReader(createInputStream(file), encoding));
+    }
+
+    /**
+     * Opens the raw input stream for the file.
+     */
+    protected InputStream createInputStream (File file)
+        throws IOException, FileNotFoundException
+    {
+        return new FileInputStream(file);
     }
 
     /**
@@ -84,6 +324,79 @@ public abstract class LineReader
      */
     protected abstract void process (String line);
 
+    /**
+     * Called line by line instead of process(String) when byte lines are turned on. The line is
+     * only valid until this returns. By default, this decodes the line and passes it to
+     * process(String). Override this to look at the raw bytes without creating a String.
+     */
+    protected void process (ByteLine line)
+    {
+        process(line.toString());
+    }
+
+    /**
+     * Called with a batch of lines at a time by readers that deliver lines in batches, such as
+     * {@link FileFollower}. By default, this passes each line to process(String).
+     */
+    protected void process (List<String> lines)
+    {
+        for (String line : lines) {
+            process(line);
+        }
+    }
+
+    /**
+     * If true, lines are passed to process(ByteLine) without being decoded first. This only works
+     * with ASCII compatible encodings, like UTF-8 or ISO-8859-1. Files in other encodings are
+     * read as Strings as usual.
+     */
+    public void setByteLines (boolean byteLines)
+    {
+        _byteLines = byteLines;
+    }
+
+    /**
+     * Turns on checkpoints, saving one every given number of bytes. Checkpointed reads track byte
+     * offsets, so they always split lines on bytes like byte line reads do, and need an ASCII
+     * compatible encoding. Reading in any other encoding throws IllegalArgumentException.
+     *
+     * @throws IllegalStateException
+     *             if this reader can not save its state in a checkpoint.
+     */
+    public void setCheckpointInterval (long bytes)
+    {
+        if (bytes > 0 && !supportsCheckpoints()) {
+            throw new IllegalStateException(getClass().getName()
+                + " can not save its state in a checkpoint.");
+        }
+        _checkpointInterval = bytes;
+    }
+
+    /**
+     * Returns true if saveState() captures everything processed so far. Readers that build up
+     * results they can not save, which is the default, can not be checkpointed, since a resumed
+     * read would lose everything before the checkpoint.
+     */
+    protected boolean supportsCheckpoints ()
+    {
+        return false;
+    }
+
+    /**
+     * Checks that the file can be read with the given encoding. Checkpointed reads find lines by
+     * looking for newline bytes, which only works with ASCII compatible encodings.
+     *
+     * @throws IllegalArgumentException
+     *             if checkpoints are on and the encoding is not ASCII compatible.
+     */
+    protected void checkEncoding (String encoding)
+    {
+        if (_checkpointInterval > 0 && !ByteLine.isAsciiCompatible(Charset.forName(encoding))) {
+            throw new IllegalArgumentException("Can not checkpoint a read in " + encoding
+                + ", since it is not ASCII compatible.");
+        }
+    }
+
     /**
      * If the given encoding is null, this returns UTF-8 by default.
      */
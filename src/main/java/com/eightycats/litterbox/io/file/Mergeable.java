@@ -0,0 +1,28 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+/**
+ * Implemented by readers whose results can be combined, so that several instances can each read
+ * part of the input and then be merged back together.
+ */
+public interface Mergeable<T>
+{
+    /**
+     * Folds the results of another instance into this one. The other instance is assumed to have
+     * read the input that came after everything this instance has read.
+     */
+    void merge (T other);
+}
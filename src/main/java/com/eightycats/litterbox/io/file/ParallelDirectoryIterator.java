@@ -0,0 +1,200 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Visits every file in a directory tree using a work-stealing pool. Each directory is listed by
+ * its own task, which forks tasks for its subdirectories and files, so both the walk and the
+ * reading run in parallel. Every worker thread gets its own reader from a {@link ReaderFactory},
+ * and once the whole tree has been read, the worker readers are merged into a target reader.
+ * <p>
+ * As with {@link ParallelLineReader}, worker readers get one start() call, with the parent
+ * directory, and then the lines of all of their files, but are never sent done(). Only the
+ * target reader sees done(), after all of the results have been merged into it.
+ * <p>
+ * Files are read in no particular order, and the worker readers are merged in no particular
+ * order either, so this suits readers whose results do not depend on the order of the files.
+ */
+public class ParallelDirectoryIterator<R extends LineReader & Mergeable<? super R>>
+    extends DirectoryIterator
+{
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+
+    public ParallelDirectoryIterator (String parentPath)
+    {
+        super(parentPath);
+    }
+
+    public ParallelDirectoryIterator (String parentPath, boolean recurse)
+    {
+        super(parentPath, recurse);
+    }
+
+    /**
+     * Sets the number of worker threads. Defaults to the number of available processors.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Reads every file with readers from the given factory, one per worker thread, and merges
+     * them all into the target.
+     */
+    public R run (R target, final ReaderFactory<? extends R> factory)
+    {
+        startRun();
+        final File parent = new File(_parent);
+        final List<R> readers = Collections.synchronizedList(new ArrayList<R>());
+        ThreadLocal<R> workerReader = new ThreadLocal<R>() {
+            @Override protected R initialValue () {
+                R reader = factory.newReader();
+                reader.start(parent);
+                readers.add(reader);
+                return reader;
+            }
+        };
+
+        target.start(parent);
+        ForkJoinPool pool = new ForkJoinPool(_threads);
+        try {
+            pool.invoke(new DirectoryTask(parent.toPath(), workerReader));
+        } finally {
+            pool.shutdown();
+        }
+
+        for (R reader : readers) {
+            target.merge(reader);
+        }
+        target.done(parent);
+        finishRun();
+        return target;
+    }
+
+    /**
+     * The worker results are only in memory until they are merged at the end, so the manifest is
+     * only saved at the end of the run. Otherwise a run that died after a save would never read
+     * the files the manifest already listed.
+     */
+    @Override
+    protected boolean canCheckpoint ()
+    {
+        return false;
+    }
+
+    /**
+     * Adds the file's lines to the worker's results, without the start() and done() that a full
+     * read would send.
+     */
+    @Override
+    protected boolean readFile (FileReader fileReader, File file)
+    {
+        try {
+            ((LineReader) fileReader).readContent(file, null);
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Lists one directory and reads its files, forking a task for each entry.
+     */
+    protected class DirectoryTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected Path _directory;
+
+        protected ThreadLocal<R> _reader;
+
+        public DirectoryTask (Path directory, ThreadLocal<R> reader)
+        {
+            _directory = directory;
+            _reader = reader;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            try {
+                DirectoryStream<Path> entries = Files.newDirectoryStream(_directory);
+                try {
+                    for (Path entry : entries) {
+                        File file = entry.toFile();
+                        if (!accept(file)) {
+                            continue;
+                        }
+                        if (Files.isDirectory(entry)) {
+                            if (_recurse) {
+                                tasks.add(new DirectoryTask(entry, _reader).fork());
+                            }
+                        } else {
+                            tasks.add(new FileTask(file, _reader).fork());
+                        }
+                    }
+                } finally {
+                    entries.close();
+                }
+                _directoryCount.incrementAndGet();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Reads one file with the current worker's reader.
+     */
+    protected class FileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected File _file;
+
+        protected ThreadLocal<R> _reader;
+
+        public FileTask (File file, ThreadLocal<R> reader)
+        {
+            _file = file;
+            _reader = reader;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            read(_reader.get(), _file);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads a file line by line using several threads. The file is memory mapped and split into
+ * chunks at newline boundaries. Each chunk is processed by its own reader instance, created by a
+ * {@link ReaderFactory}, and the per-chunk readers are then merged, in file order, into a target
+ * reader.
+ * <p>
+ * Worker readers get a {@link LineReader#start(File)} call before processing their chunk but are
+ * never sent {@link LineReader#done(File)}. Only the target reader sees done(), after all of the
+ * results have been merged into it. Lines are terminated by "\n", "\r" or "\r\n", the same as
+ * BufferedReader.readLine(). Workers that have byte lines turned on get process(ByteLine) calls
+ * instead of process(String).
+ * <p>
+ * The file encoding must use single 0x0A and 0x0D bytes for "\n" and "\r" and never use those
+ * bytes otherwise (UTF-8, US-ASCII, ISO-8859-*, etc.). For other encodings this falls back to
+ * reading the file serially with the target reader.
+ */
+public class ParallelLineReader<R extends LineReader & Mergeable<? super R>>
+    implements FileReader
+{
+    /**
+     * The default chunk size, in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The reader that all of the results get merged into.
+     */
+    protected R _target;
+
+    /**
+     * Creates a reader for each chunk.
+     */
+    protected ReaderFactory<? extends R> _factory;
+
+    protected int _chunkSize = DEFAULT_CHUNK_SIZE;
+
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+
+    public ParallelLineReader (R target, ReaderFactory<? extends R> factory)
+    {
+        _target = target;
+        _factory = factory;
+    }
+
+    /**
+     * Sets the approximate number of bytes handed to each worker reader.
+     */
+    public void setChunkSize (int chunkSize)
+    {
+        _chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the number of worker threads. Defaults to the number of available processors.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    public R getTarget ()
+    {
+        return _target;
+    }
+
+    @Override
+    public void read (String filePath)
+    {
+        read(filePath, null);
+    }
+
+    @Override
+    public void read (String filePath, String encoding)
+    {
+        encoding = _target.getEncoding(encoding);
+        Charset charset = Charset.forName(encoding);
+        if (!isNewlineSafe(charset)) {
+            _target.read(filePath, encoding);
+            return;
+        }
+
+        File file = new File(filePath);
+        _target.start(file);
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                long[] bounds = split(channel, _chunkSize);
+                if (bounds.length > 1) {
+                    ForkJoinPool pool = new ForkJoinPool(_threads);
+                    try {
+                        _target.merge(pool.invoke(new ChunkTask(file, channel, charset, bounds,
+                            0, bounds.length - 1)));
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            } finally {
+                input.close();
+            }
+
+        } catch (ChunkException ex) {
+            ex.getCause().printStackTrace();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        _target.done(file);
+    }
+
+    /**
+     * Splits a file into chunks of roughly the given size. Each chunk but the last ends just
+     * after a line terminator, and never between the "\r" and "\n" of a "\r\n". The returned
+     * array holds the start offset of each chunk, followed by the size of the file.
+     */
+    public static long[] split (FileChannel channel, long chunkSize)
+        throws IOException
+    {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<Long>();
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+        long start = 0;
+        while (start < size) {
+            bounds.add(start);
+            start = nextLine(channel, Math.min(start + chunkSize, size), buffer);
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset just after the first line terminator at or after the given position,
+     * or the size of the file if there are no more terminators.
+     */
+    protected static long nextLine (FileChannel channel, long position, ByteBuffer buffer)
+        throws IOException
+    {
+        long size = channel.size();
+        while (position < size) {
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    return position + i + 1;
+                }
+                if (b == '\r') {
+                    // keep a "\r\n" together
+                    long next = position + i + 1;
+                    if (next < size && readByte(channel, next, buffer, i + 1, count) == '\n') {
+                        next++;
+                    }
+                    return next;
+                }
+            }
+            position += count;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the byte at the given offset, using the buffer if the byte at index is in it.
+     */
+    protected static byte readByte (FileChannel channel, long offset, ByteBuffer buffer,
+        int index, int count)
+        throws IOException
+    {
+        if (index < count) {
+            return buffer.get(index);
+        }
+        ByteBuffer one = ByteBuffer.allocate(1);
+        if (channel.read(one, offset) < 1) {
+            return -1;
+        }
+        return one.get(0);
+    }
+
+    /**
+     * Checks that line terminators can safely be found by looking for 0x0A and 0x0D bytes.
+     */
+    protected static boolean isNewlineSafe (Charset charset)
+    {
+        return Arrays.equals("\n\r".getBytes(charset), new byte[] { '\n', '\r' });
+    }
+
+    /**
+     * Processes a range of chunks, splitting the range in half until there is one chunk left.
+     */
+    protected class ChunkTask extends RecursiveTask<R>
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected File _file;
+
+        protected FileChannel _channel;
+
+        protected Charset _charset;
+
+        protected long[] _bounds;
+
+        protected int _from;
+
+        protected int _to;
+
+        public ChunkTask (File file, FileChannel channel, Charset charset, long[] bounds,
+            int from, int to)
+        {
+            _file = file;
+            _channel = channel;
+            _charset = charset;
+            _bounds = bounds;
+            _from = from;
+            _to = to;
+        }
+
+        @Override
+        protected R compute ()
+        {
+            if (_to - _from == 1) {
+                try {
+                    return readChunk(_bounds[_from], _bounds[_to]);
+                } catch (IOException ex) {
+                    throw new ChunkException(ex);
+                }
+            }
+
+            int middle = (_from + _to) >>> 1;
+            ChunkTask right = new ChunkTask(_file, _channel, _charset, _bounds, middle, _to);
+            right.fork();
+            R results = new ChunkTask(_file, _channel, _charset, _bounds, _from, middle)
+                .compute();
+            results.merge(right.join());
+            return results;
+        }
+
+        protected R readChunk (long start, long end)
+            throws IOException
+        {
+            long length = end - start;
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Line at offset " + start + " of " + _file
+                    + " is too long to map.");
+            }
+
+            R reader = _factory.newReader();
+            reader.start(_file);
+
+            MappedByteBuffer buffer = _channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            ByteLine byteLine = reader._byteLines ? new ByteLine(_charset) : null;
+            byte[] line = new byte[256];
+            int limit = (int) length;
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                byte b = 0;
+                while (lineEnd < limit && (b = buffer.get(lineEnd)) != '\n' && b != '\r') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (b == '\r' && next < limit && buffer.get(next) == '\n') {
+                    next++;
+                }
+
+                int lineLength = lineEnd - lineStart;
+                if (line.length < lineLength) {
+                    line = new byte[Math.max(lineLength, line.length * 2)];
+                }
+                buffer.position(lineStart);
+                buffer.get(line, 0, lineLength);
+                if (byteLine != null) {
+                    byteLine.set(line, 0, lineLength);
+                    reader.process(byteLine);
+                } else {
+                    reader.process(new String(line, 0, lineLength, _charset));
+                }
+
+                lineStart = next;
+            }
+            return reader;
+        }
+    }
+
+    /**
+     * Carries an IOException out of a worker thread.
+     */
+    protected static class ChunkException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public ChunkException (IOException cause)
+        {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,592 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import com.eightycats.litterbox.io.TransferStats;
+
+/**
+ * Writes zip files using several threads to deflate, the way pigz does for gzip. Each file is cut
+ * into blocks that are compressed independently on a worker pool, each primed with the last 32 KB
+ * of the block before it. Every block but the last ends with a sync flush, so the compressed
+ * blocks simply concatenate into one deflate stream. The calling thread reads the files,
+ * computes their CRCs, and writes the finished blocks in order, filling in each local header once
+ * its entry is done. Entries larger than 4 GB, and archives with more than 65535 entries, get
+ * zip64 records.
+ */
+public class ParallelZipWriter
+{
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the deflate window, and so the most dictionary a block can use.
+     */
+    protected static final int DICTIONARY_SIZE = 32 * 1024;
+
+    protected static final int LOCAL_HEADER = 0x04034b50;
+
+    protected static final int CENTRAL_HEADER = 0x02014b50;
+
+    protected static final int END_HEADER = 0x06054b50;
+
+    protected static final int ZIP64_END_HEADER = 0x06064b50;
+
+    protected static final int ZIP64_LOCATOR = 0x07064b50;
+
+    protected static final int ZIP64_EXTRA = 0x0001;
+
+    protected static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * Files at least this big get zip64 local headers, leaving room for the compressed data to
+     * be a little bigger than the original.
+     */
+    protected static final long ZIP64_LOCAL_THRESHOLD = 0xF0000000L;
+
+    protected static final int UTF8_FLAG = 0x0800;
+
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+
+    protected int _blockSize = DEFAULT_BLOCK_SIZE;
+
+    protected int _level = Deflater.DEFAULT_COMPRESSION;
+
+    protected TransferStats _stats = new TransferStats();
+
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Sets the number of uncompressed bytes in each block handed to a worker. Smaller blocks
+     * spread small files over more threads, but compress slightly worse.
+     */
+    public void setBlockSize (int blockSize)
+    {
+        _blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+    }
+
+    /**
+     * Sets the deflate level, from 0 to 9.
+     */
+    public void setLevel (int level)
+    {
+        _level = level;
+    }
+
+    /**
+     * Returns the files and uncompressed bytes zipped, and the time taken, by the last zip.
+     */
+    public TransferStats getStats ()
+    {
+        return _stats;
+    }
+
+    /**
+     * Zips the given files and directories the same way as {@link ZipUtils#zip(String, File[])}.
+     * The contents of a directory are stored relative to that directory, and a file is stored
+     * under its own name.
+     */
+    public void zip (File zipFile, File[] entries) throws IOException
+    {
+        List<Entry> list = new ArrayList<Entry>();
+        Set<String> names = new HashSet<String>();
+        for (File entry : entries) {
+            collect(entry.isDirectory() ? entry : entry.getParentFile(), entry, list, names);
+        }
+
+        FileUtils.makeParentDirs(zipFile);
+        RandomAccessFile file = new RandomAccessFile(zipFile, "rw");
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+        try {
+            file.setLength(0);
+            _stats.start();
+            new Assembler(file.getChannel(), executor).write(list);
+            _stats.stop();
+        } finally {
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+
+    protected void collect (File parentDir, File file, List<Entry> list, Set<String> names)
+        throws IOException
+    {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null) {
+                throw new IOException("Could not list directory [" + file.getPath() + "]");
+            }
+            for (File child : files) {
+                collect(parentDir, child, list, names);
+            }
+        } else {
+            // use forward slashes for file separators, like ZipUtils.addEntry()
+            String name = FileUtils.getRelativePath(parentDir, file).replace('\\', '/');
+            if (!names.add(name)) {
+                throw new ZipException("duplicate entry: " + name);
+            }
+            list.add(new Entry(file, name));
+        }
+    }
+
+    /**
+     * One file in the archive.
+     */
+    protected static class Entry
+    {
+        public File file;
+
+        public byte[] name;
+
+        public int flags;
+
+        public long dosTime;
+
+        public boolean zip64Local;
+
+        public long offset;
+
+        public long crc;
+
+        public long size;
+
+        public long compressedSize;
+
+        public Entry (File file, String name)
+        {
+            this.file = file;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            if (this.name.length != name.length()) {
+                flags = UTF8_FLAG;
+            }
+            dosTime = toDosTime(file.lastModified());
+            zip64Local = file.length() >= ZIP64_LOCAL_THRESHOLD;
+        }
+
+        public boolean isZip64 ()
+        {
+            return zip64Local || size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC
+                || offset >= ZIP64_MAGIC;
+        }
+    }
+
+    /**
+     * A block of an entry waiting to be written.
+     */
+    protected static class Block
+    {
+        public Entry entry;
+
+        public boolean first;
+
+        public boolean last;
+
+        public Future<byte[]> data;
+    }
+
+    /**
+     * Deflates one block into a raw deflate fragment.
+     */
+    protected class Compress
+        implements Callable<byte[]>
+    {
+        protected byte[] _data;
+
+        protected int _length;
+
+        protected byte[] _dictionary;
+
+        protected int _dictionaryLength;
+
+        protected boolean _last;
+
+        public Compress (byte[] data, int length, byte[] dictionary, int dictionaryLength,
+            boolean last)
+        {
+            _data = data;
+            _length = length;
+            _dictionary = dictionary;
+            _dictionaryLength = dictionaryLength;
+            _last = last;
+        }
+
+        @Override
+        public byte[] call ()
+        {
+            Deflater deflater = new Deflater(_level, true);
+            try {
+                if (_dictionary != null) {
+                    int length = Math.min(DICTIONARY_SIZE, _dictionaryLength);
+                    deflater.setDictionary(_dictionary, _dictionaryLength - length, length);
+                }
+                deflater.setInput(_data, 0, _length);
+
+                ByteArrayOutputStream output = new ByteArrayOutputStream(_length / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                if (_last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        output.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    // a full buffer means there may be more output waiting
+                    int count;
+                    do {
+                        count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        output.write(buffer, 0, count);
+                    } while (count == buffer.length);
+                }
+                return output.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Reads the entries, hands their blocks to the workers and writes the results in order.
+     */
+    protected class Assembler
+    {
+        protected FileChannel _output;
+
+        protected ExecutorService _executor;
+
+        protected ArrayDeque<Block> _pending = new ArrayDeque<Block>();
+
+        protected int _window = Math.max(2, _threads * 2);
+
+        public Assembler (FileChannel output, ExecutorService executor)
+        {
+            _output = output;
+            _executor = executor;
+        }
+
+        public void write (List<Entry> entries) throws IOException
+        {
+            for (Entry entry : entries) {
+                read(entry);
+            }
+            while (!_pending.isEmpty()) {
+                flush(_pending.removeFirst());
+            }
+            writeCentralDirectory(entries);
+        }
+
+        protected void read (Entry entry) throws IOException
+        {
+            CRC32 crc = new CRC32();
+            InputStream input = new FileInputStream(entry.file);
+            try {
+                byte[] previous = null;
+                int previousLength = 0;
+                byte[] data = new byte[_blockSize];
+                int length = readFully(input, data);
+                boolean first = true;
+                while (true) {
+                    crc.update(data, 0, length);
+                    entry.size += length;
+
+                    // look ahead so that we know which block is the last
+                    byte[] next = null;
+                    int nextLength = 0;
+                    if (length == data.length) {
+                        next = new byte[_blockSize];
+                        nextLength = readFully(input, next);
+                    }
+                    boolean last = nextLength <= 0;
+                    if (last) {
+                        entry.crc = crc.getValue();
+                    }
+
+                    Block block = new Block();
+                    block.entry = entry;
+                    block.first = first;
+                    block.last = last;
+                    block.data = _executor.submit(new Compress(data, length, previous,
+                        previousLength, last));
+                    _pending.addLast(block);
+                    while (_pending.size() > _window) {
+                        flush(_pending.removeFirst());
+                    }
+
+                    if (last) {
+                        break;
+                    }
+                    previous = data;
+                    previousLength = length;
+                    data = next;
+                    length = nextLength;
+                    first = false;
+                }
+            } finally {
+                input.close();
+            }
+            _stats.addFile(entry.size);
+        }
+
+        protected void flush (Block block) throws IOException
+        {
+            Entry entry = block.entry;
+            if (block.first) {
+                entry.offset = _output.position();
+                writeLocalHeader(entry);
+            }
+
+            byte[] data;
+            try {
+                data = block.data.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            }
+            write(ByteBuffer.wrap(data));
+            entry.compressedSize += data.length;
+
+            if (block.last) {
+                patchLocalHeader(entry);
+            }
+        }
+
+        protected void writeLocalHeader (Entry entry) throws IOException
+        {
+            int extra = entry.zip64Local ? 20 : 0;
+            ByteBuffer buffer = allocate(30 + entry.name.length + extra);
+            buffer.putInt(LOCAL_HEADER);
+            buffer.putShort((short) (entry.zip64Local ? 45 : 20));
+            buffer.putShort((short) entry.flags);
+            buffer.putShort((short) Deflater.DEFLATED);
+            buffer.putInt((int) entry.dosTime);
+            // crc and sizes are filled in once the entry has been written
+            buffer.putInt(0);
+            buffer.putInt(entry.zip64Local ? (int) ZIP64_MAGIC : 0);
+            buffer.putInt(entry.zip64Local ? (int) ZIP64_MAGIC : 0);
+            buffer.putShort((short) entry.name.length);
+            buffer.putShort((short) extra);
+            buffer.put(entry.name);
+            if (entry.zip64Local) {
+                buffer.putShort((short) ZIP64_EXTRA);
+                buffer.putShort((short) 16);
+                buffer.putLong(0);
+                buffer.putLong(0);
+            }
+            buffer.flip();
+            write(buffer);
+        }
+
+        protected void patchLocalHeader (Entry entry) throws IOException
+        {
+            if (!entry.zip64Local
+                && (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)) {
+                throw new ZipException("File [" + entry.file.getPath()
+                    + "] grew past 4 GB while it was being zipped.");
+            }
+
+            ByteBuffer buffer = allocate(12);
+            buffer.putInt((int) entry.crc);
+            if (entry.zip64Local) {
+                buffer.putInt((int) ZIP64_MAGIC);
+                buffer.putInt((int) ZIP64_MAGIC);
+            } else {
+                buffer.putInt((int) entry.compressedSize);
+                buffer.putInt((int) entry.size);
+            }
+            buffer.flip();
+            write(buffer, entry.offset + 14);
+
+            if (entry.zip64Local) {
+                buffer = allocate(16);
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.compressedSize);
+                buffer.flip();
+                write(buffer, entry.offset + 30 + entry.name.length + 4);
+            }
+        }
+
+        protected void writeCentralDirectory (List<Entry> entries) throws IOException
+        {
+            long start = _output.position();
+            for (Entry entry : entries) {
+                writeCentralHeader(entry);
+            }
+            long end = _output.position();
+            long count = entries.size();
+            long size = end - start;
+
+            boolean zip64 = count >= 0xFFFF || size >= ZIP64_MAGIC || start >= ZIP64_MAGIC;
+            if (zip64) {
+                ByteBuffer buffer = allocate(56 + 20);
+                buffer.putInt(ZIP64_END_HEADER);
+                buffer.putLong(44);
+                buffer.putShort((short) 45);
+                buffer.putShort((short) 45);
+                buffer.putInt(0);
+                buffer.putInt(0);
+                buffer.putLong(count);
+                buffer.putLong(count);
+                buffer.putLong(size);
+                buffer.putLong(start);
+
+                buffer.putInt(ZIP64_LOCATOR);
+                buffer.putInt(0);
+                buffer.putLong(end);
+                buffer.putInt(1);
+                buffer.flip();
+                write(buffer);
+            }
+
+            ByteBuffer buffer = allocate(22);
+            buffer.putInt(END_HEADER);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) Math.min(count, 0xFFFF));
+            buffer.putShort((short) Math.min(count, 0xFFFF));
+            buffer.putInt((int) Math.min(size, ZIP64_MAGIC));
+            buffer.putInt((int) Math.min(start, ZIP64_MAGIC));
+            buffer.putShort((short) 0);
+            buffer.flip();
+            write(buffer);
+        }
+
+        protected void writeCentralHeader (Entry entry) throws IOException
+        {
+            // the zip64 extra field holds only the values too big for their regular fields
+            boolean bigSize = entry.size >= ZIP64_MAGIC || entry.zip64Local;
+            boolean bigCompressed = entry.compressedSize >= ZIP64_MAGIC || entry.zip64Local;
+            boolean bigOffset = entry.offset >= ZIP64_MAGIC;
+            int extraData = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            int extra = extraData > 0 ? extraData + 4 : 0;
+            int version = entry.isZip64() ? 45 : 20;
+
+            ByteBuffer buffer = allocate(46 + entry.name.length + extra);
+            buffer.putInt(CENTRAL_HEADER);
+            buffer.putShort((short) version);
+            buffer.putShort((short) version);
+            buffer.putShort((short) entry.flags);
+            buffer.putShort((short) Deflater.DEFLATED);
+            buffer.putInt((int) entry.dosTime);
+            buffer.putInt((int) entry.crc);
+            buffer.putInt(bigCompressed ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+            buffer.putInt(bigSize ? (int) ZIP64_MAGIC : (int) entry.size);
+            buffer.putShort((short) entry.name.length);
+            buffer.putShort((short) extra);
+            // comment length, disk number, internal and external attributes
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putInt(0);
+            buffer.putInt(bigOffset ? (int) ZIP64_MAGIC : (int) entry.offset);
+            buffer.put(entry.name);
+            if (extra > 0) {
+                buffer.putShort((short) ZIP64_EXTRA);
+                buffer.putShort((short) extraData);
+                if (bigSize) {
+                    buffer.putLong(entry.size);
+                }
+                if (bigCompressed) {
+                    buffer.putLong(entry.compressedSize);
+                }
+                if (bigOffset) {
+                    buffer.putLong(entry.offset);
+                }
+            }
+            buffer.flip();
+            write(buffer);
+        }
+
+        protected void write (ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                _output.write(buffer);
+            }
+        }
+
+        protected void write (ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                position += _output.write(buffer, position);
+            }
+        }
+    }
+
+    protected static ByteBuffer allocate (int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads until the buffer is full or the input ends.
+     *
+     * @return the number of bytes read, which is less than the buffer size only at the end.
+     */
+    protected static int readFully (InputStream input, byte[] buffer) throws IOException
+    {
+        int total = 0;
+        while (total < buffer.length) {
+            int count = input.read(buffer, total, buffer.length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Converts a Java time to the MS-DOS date and time used by zip headers.
+     */
+    protected static long toDosTime (long time)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+            | calendar.get(Calendar.DAY_OF_MONTH) << 16
+            | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5
+            | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
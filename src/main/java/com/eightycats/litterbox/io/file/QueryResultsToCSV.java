@@ -14,38 +14,466 @@
 
 package com.eightycats.litterbox.io.file;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Takes the output from query in the mysql client and converts it to CSV.
+ * Takes the output from query in the mysql client and converts it to CSV. Each line is scanned
+ * once: border rows ("+----+-----+") give the positions of the column separators, and the header
+ * and data rows in between are cut at those positions, so values containing pipes or commas come
+ * out intact. Values are trimmed and quoted as needed for CSV. Lines outside of a table, such as
+ * "3 rows in set", are dropped.
+ * <p>
+ * With more than one thread, the file is split into chunks at line boundaries that are converted
+ * in parallel and written out in order. Chunks start out with the columns of the first border in
+ * the file, which is fine for a dump of one table. For dumps of several tables with different
+ * columns, rows that do not line up with the columns they were given are split at every pipe.
  */
 public class QueryResultsToCSV extends ReadWrite
 {
+    /**
+     * The checkpoint property holding the column positions of the current table.
+     */
+    public static final String COLUMNS = "columns";
+
+    protected Converter _converter = new Converter();
+
+    protected StringBuilder _row = new StringBuilder();
+
+    /**
+     * Holds a row while it is written out.
+     */
+    protected char[] _chars = new char[256];
+
+    protected int _threads = 1;
+
+    protected int _chunkSize = ParallelLineReader.DEFAULT_CHUNK_SIZE;
+
     public QueryResultsToCSV (String outputPath)
     {
         super(outputPath);
     }
 
+    /**
+     * Sets the number of threads converting the file. With more than one, the file is converted
+     * in chunks, which skips checkpointing. Only use this for dumps of a single table, since every
+     * chunk starts out with the columns of the first table.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    /**
+     * Sets the approximate number of bytes converted at a time when running on several threads.
+     */
+    public void setChunkSize (int chunkSize)
+    {
+        _chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void start (File file)
+    {
+        super.start(file);
+        _converter = new Converter();
+    }
+
+    /**
+     * Saves the columns of the current table, so a resumed read can carry on splitting rows.
+     */
+    @Override
+    protected void saveState (Properties state)
+        throws IOException
+    {
+        super.saveState(state);
+        if (_converter._inTable) {
+            StringBuilder columns = new StringBuilder();
+            for (int column : _converter.getColumns()) {
+                if (columns.length() > 0) {
+                    columns.append(',');
+                }
+                columns.append(column);
+            }
+            state.setProperty(COLUMNS, columns.toString());
+        }
+    }
+
+    @Override
+    protected void restoreState (Properties state)
+        throws IOException
+    {
+        super.restoreState(state);
+        String columns = state.getProperty(COLUMNS);
+        if (columns != null) {
+            String[] positions = columns.split(",");
+            int[] values = new int[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                values[i] = Integer.parseInt(positions[i]);
+            }
+            _converter.setColumns(values);
+        }
+    }
+
     @Override
     protected void process (String line)
     {
-        line = line.replaceAll("\\|", ",");
-        if (line.startsWith(",")) {
-            line = line.substring(1);
+        _row.setLength(0);
+        if (_converter.convert(line, 0, line.length(), _row)) {
+            if (_downstream == null && !_verbose) {
+                // skip making a String of the row when it only goes to the writer, since
+                // PrintWriter.append() would still call toString()
+                int length = _row.length();
+                if (_chars.length < length) {
+                    _chars = new char[Math.max(length, _chars.length * 2)];
+                }
+                _row.getChars(0, length, _chars, 0);
+                _out.write(_chars, 0, length);
+                _out.println();
+            } else {
+                println(_row.toString());
+            }
+        }
+    }
+
+    @Override
+    protected void read (String filePath, String inputEncoding, Writer output)
+    {
+        if (_threads <= 1) {
+            super.read(filePath, inputEncoding, output);
+            return;
+        }
+
+        setWriter(output);
+        File file = new File(filePath);
+        start(file);
+        try {
+            convertChunks(file, Charset.forName(getEncoding(inputEncoding)));
+        } catch (IOException ex) {
+            _readError = ex;
+            ex.printStackTrace();
+        }
+        done(file);
+    }
+
+    /**
+     * Converts the file a chunk at a time on a pool of threads, writing each chunk's results as
+     * soon as the chunks before it have been written.
+     */
+    protected void convertChunks (File file, final Charset charset)
+        throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+        try {
+            final FileChannel channel = input.getChannel();
+            long[] bounds = ParallelLineReader.split(channel, _chunkSize);
+            if (bounds.length < 2) {
+                return;
+            }
+            final int[] columns = firstBorder(channel, bounds[1], charset);
+
+            // limit how many converted chunks can be waiting in memory to be written
+            Deque<Future<StringBuilder>> pending = new ArrayDeque<Future<StringBuilder>>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                final long start = bounds[i];
+                final long end = bounds[i + 1];
+                pending.add(executor.submit(new Callable<StringBuilder>() {
+                    @Override public StringBuilder call () throws IOException {
+                        Converter converter = new Converter();
+                        converter.setColumns(columns);
+                        return converter.convert(decode(channel, start, end, charset));
+                    }
+                }));
+                if (pending.size() >= _threads * 2) {
+                    write(pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+            input.close();
+        }
+    }
+
+    protected void write (Future<StringBuilder> chunk)
+        throws IOException
+    {
+        try {
+            _out.append(chunk.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
         }
+    }
+
+    /**
+     * Returns the columns of the first border row in the first chunk, or null if there is none.
+     */
+    protected int[] firstBorder (FileChannel channel, long end, Charset charset)
+        throws IOException
+    {
+        CharBuffer chars = decode(channel, 0, end, charset);
+        Converter converter = new Converter();
+        int length = chars.length();
+        int start = 0;
+        while (start < length) {
+            int lineEnd = start;
+            while (lineEnd < length && chars.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > start && chars.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (converter.isBorder(chars, start, lineEnd)) {
+                converter.convert(chars, start, lineEnd, null);
+                return converter.getColumns();
+            }
+            start = next;
+        }
+        return null;
+    }
+
+    protected static CharBuffer decode (FileChannel channel, long start, long end,
+        Charset charset)
+        throws IOException
+    {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Chunk at offset " + start + " is too big to map.");
+        }
+        return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .decode(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+    }
+
+    /**
+     * Converts table rows to CSV rows, keeping track of the columns of the current table.
+     */
+    protected static class Converter
+    {
+        /**
+         * The positions of the "+" characters in the last border row.
+         */
+        protected int[] _columns = new int[16];
+
+        protected int _columnCount;
+
+        /**
+         * True once a border row has been seen, until a line that is not part of a table.
+         */
+        protected boolean _inTable;
+
+        public void setColumns (int[] columns)
+        {
+            if (columns != null) {
+                _columns = columns.clone();
+                _columnCount = columns.length;
+                _inTable = true;
+            }
+        }
+
+        public int[] getColumns ()
+        {
+            return Arrays.copyOf(_columns, _columnCount);
+        }
+
+        /**
+         * Converts each line in the text, and returns the CSV rows.
+         */
+        public StringBuilder convert (CharSequence text)
+        {
+            String separator = System.lineSeparator();
+            StringBuilder result = new StringBuilder(text.length());
+            int length = text.length();
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && text.charAt(end) != '\n') {
+                    end++;
+                }
+                int next = end + 1;
+                if (end > start && text.charAt(end - 1) == '\r') {
+                    end--;
+                }
+                if (convert(text, start, end, result)) {
+                    result.append(separator);
+                }
+                start = next;
+            }
+            return result;
+        }
+
+        /**
+         * Converts one line. Border rows update the columns, and header and data rows are
+         * appended to the result as CSV.
+         *
+         * @return true if a row was appended.
+         */
+        public boolean convert (CharSequence line, int start, int end, StringBuilder result)
+        {
+            int first = start;
+            while (first < end && line.charAt(first) == ' ') {
+                first++;
+            }
+            if (first == end) {
+                return false;
+            }
+
+            char ch = line.charAt(first);
+            if (ch == '+' && isBorder(line, first, end)) {
+                _columnCount = 0;
+                for (int i = first; i < end; i++) {
+                    if (line.charAt(i) == '+') {
+                        if (_columnCount == _columns.length) {
+                            _columns = Arrays.copyOf(_columns, _columnCount * 2);
+                        }
+                        _columns[_columnCount++] = i - start;
+                    }
+                }
+                _inTable = true;
+                return false;
+            }
+            if (ch != '|' || !_inTable) {
+                _inTable = false;
+                return false;
+            }
+
+            if (linesUp(line, start, end)) {
+                for (int i = 0; i + 1 < _columnCount; i++) {
+                    if (i > 0) {
+                        result.append(',');
+                    }
+                    appendValue(line, start + _columns[i] + 1, start + _columns[i + 1], result);
+                }
+            } else {
+                // the row does not match the border, so fall back on splitting at every pipe
+                int cell = first + 1;
+                int last = end;
+                while (last > cell && line.charAt(last - 1) != '|') {
+                    last--;
+                }
+                boolean firstCell = true;
+                for (int i = cell; i < last; i++) {
+                    if (line.charAt(i) == '|') {
+                        if (!firstCell) {
+                            result.append(',');
+                        }
+                        appendValue(line, cell, i, result);
+                        firstCell = false;
+                        cell = i + 1;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the line is made up of only "+" and "-".
+         */
+        public boolean isBorder (CharSequence line, int start, int end)
+        {
+            int last = end;
+            while (last > start && line.charAt(last - 1) == ' ') {
+                last--;
+            }
+            if (last - start < 2 || line.charAt(start) != '+' || line.charAt(last - 1) != '+') {
+                return false;
+            }
+            for (int i = start; i < last; i++) {
+                char ch = line.charAt(i);
+                if (ch != '+' && ch != '-') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the row has a pipe under every "+" of the border.
+         */
+        protected boolean linesUp (CharSequence line, int start, int end)
+        {
+            if (_columnCount < 2) {
+                return false;
+            }
+            for (int i = 0; i < _columnCount; i++) {
+                int pos = start + _columns[i];
+                if (pos >= end || line.charAt(pos) != '|') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Appends a cell's value, trimmed, and quoted if it needs to be.
+         */
+        protected void appendValue (CharSequence line, int start, int end, StringBuilder result)
+        {
+            while (start < end && line.charAt(start) == ' ') {
+                start++;
+            }
+            while (end > start && line.charAt(end - 1) == ' ') {
+                end--;
+            }
 
-        line = line.replaceAll("\\+-*", "");
-        line = line.trim();
+            boolean quote = false;
+            for (int i = start; i < end && !quote; i++) {
+                char ch = line.charAt(i);
+                quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+            }
+            if (!quote) {
+                result.append(line, start, end);
+                return;
+            }
 
-        if (line.length() > 0) {
-            println(line);
+            result.append('"');
+            for (int i = start; i < end; i++) {
+                char ch = line.charAt(i);
+                if (ch == '"') {
+                    result.append('"');
+                }
+                result.append(ch);
+            }
+            result.append('"');
         }
     }
 
+    /**
+     * Converts a ".txt" file to a ".csv" file next to it. This runs on one thread, since the file
+     * may hold several tables.
+     */
     public static void processFile (String fileName)
         throws FileNotFoundException
     {
-        new QueryResultsToCSV(fileName.replaceAll(".txt", ".csv")).read(fileName);
+        String outputPath = fileName.endsWith(".txt")
+            ? fileName.substring(0, fileName.length() - 4) + ".csv" : fileName + ".csv";
+        QueryResultsToCSV converter = new QueryResultsToCSV(outputPath);
+        converter.read(fileName);
     }
 
     public static void main (String[] args)
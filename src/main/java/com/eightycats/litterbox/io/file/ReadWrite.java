@@ -17,16 +17,23 @@ package com.eightycats.litterbox.io.file;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.Properties;
 
 import com.eightycats.litterbox.io.StreamUtils;
 
 /**
  * Support for reading a file line by line, processing each line, and writing the results to an
- * output file. If no output file is set, this will try to write the results to a temp file, and
- * then overwrite the original file with the results.
+ * output file. If no output file is set, the results are written to a temp file in the same
+ * directory, which is then renamed over the original file. Where the file system supports it, the
+ * rename is atomic, so the original is never seen half written.
+ * <p>
+ * Checkpoints record how much output has been written, so a resumed read cuts the output back to
+ * that point and appends to it.
  */
 public abstract class ReadWrite extends Cat
 {
@@ -45,6 +52,21 @@ public abstract class ReadWrite extends Cat
      */
     protected String _tempPath;
 
+    /**
+     * If true, the output is block gzipped and indexed.
+     */
+    protected boolean _blockGZip;
+
+    /**
+     * If true, in-place results are forced to disk before they replace the original.
+     */
+    protected boolean _sync = true;
+
+    /**
+     * The number of threads compressing block gzipped output.
+     */
+    protected int _compressionThreads = Runtime.getRuntime().availableProcessors();
+
     /**
      * No output file specified. Will try to modify the input file in place.
      */
@@ -73,26 +95,71 @@ public abstract class ReadWrite extends Cat
     @Override
     public void read (String filePath, String inputEncoding)
     {
+        _readError = null;
+        checkEncoding(getEncoding(inputEncoding));
         try {
-            String outputPath;
+            String outputPath = resume(new File(filePath));
+            boolean append = outputPath != null;
             // if not output file was specified, use a temp file
-            if (_outputPath == null) {
-                outputPath = _tempPath = File.createTempFile("littlebox", ".txt").getCanonicalPath();
+            if (append) {
+                _tempPath = (_outputPath == null) ? outputPath : null;
+            } else if (_outputPath == null) {
+                // next to the file the rename will replace, which may be behind a symlink
+                outputPath = _tempPath = FileUtils.createSiblingTempFile(
+                    new File(filePath).getCanonicalFile()).getCanonicalPath();
             } else {
                 outputPath = _outputPath;
             }
             String outputEncoding = _outputEncoding != null ? _outputEncoding :
                 getEncoding(inputEncoding);
-            read(filePath, inputEncoding, new OutputStreamWriter(new FileOutputStream(outputPath),
-                outputEncoding));
+            _outputFile = new File(outputPath);
+            _outputStream = createOutputStream(_outputFile, append);
+            read(filePath, inputEncoding, new OutputStreamWriter(_outputStream, outputEncoding));
 
         } catch (UnsupportedEncodingException unex) {
+            _readError = unex;
             unex.printStackTrace();
         } catch (IOException fex) {
+            _readError = fex;
             fex.printStackTrace();
         }
     }
 
+    /**
+     * If there is a checkpoint for the input file, cuts its output file back to the length it
+     * had at the checkpoint and returns its path, so that the output can be appended to. If the
+     * output cannot be resumed, the checkpoint is thrown away and this returns null.
+     */
+    protected String resume (File file)
+        throws IOException
+    {
+        Properties checkpoint = loadCheckpoint(file);
+        if (checkpoint == null) {
+            return null;
+        }
+
+        String outputPath = checkpoint.getProperty(OUTPUT_PATH);
+        String length = checkpoint.getProperty(OUTPUT_LENGTH);
+        if (outputPath != null && length != null) {
+            File output = new File(outputPath);
+            boolean sameOutput = (_outputPath == null)
+                || output.getCanonicalFile().equals(new File(_outputPath).getCanonicalFile());
+            if (sameOutput && output.length() >= Long.parseLong(length)) {
+                RandomAccessFile truncate = new RandomAccessFile(output, "rw");
+                try {
+                    truncate.setLength(Long.parseLong(length));
+                } finally {
+                    truncate.close();
+                }
+                return outputPath;
+            }
+        }
+
+        // without the output written so far, the whole input has to be read again
+        getCheckpointFile(file).delete();
+        return null;
+    }
+
     protected void read (String filePath, String inputEncoding, Writer output)
     {
         setWriter(output);
@@ -107,19 +174,86 @@ public abstract class ReadWrite extends Cat
         StreamUtils.close(_out);
 
         if (_tempPath != null) {
-            // copy temp file over original
+            File tempFile = new File(_tempPath);
+            _tempPath = null;
+            if (_readError != null) {
+                // leave the original alone, and keep the partial output if a checkpoint can
+                // resume from it
+                if (!isCheckpointOutput(file, tempFile)) {
+                    tempFile.delete();
+                    BlockGZipIndex.getIndexFile(tempFile).delete();
+                }
+                return;
+            }
+            // rename the temp file over the original
             try {
-                FileUtils.copy(_tempPath, file.getCanonicalPath());
+                File original = file.getCanonicalFile();
+                FileUtils.replaceAtomically(tempFile, original, _sync);
+                if (_blockGZip) {
+                    FileUtils.replaceAtomically(BlockGZipIndex.getIndexFile(tempFile),
+                        BlockGZipIndex.getIndexFile(original), _sync);
+                }
             } catch (IOException ex) {
                 ex.printStackTrace();
             } finally {
-                // delete the temp file
-                FileUtils.delete(_tempPath);
-                _tempPath = null;
+                tempFile.delete();
+                BlockGZipIndex.getIndexFile(tempFile).delete();
             }
         }
     }
 
+    /**
+     * Checks whether the saved checkpoint for the given input file resumes by appending to the
+     * given output file.
+     */
+    protected boolean isCheckpointOutput (File file, File output)
+    {
+        Properties checkpoint = loadCheckpoint(file);
+        return checkpoint != null && output.getPath().equals(checkpoint.getProperty(OUTPUT_PATH));
+    }
+
+    /**
+     * Opens the raw output stream for the output file. When resuming from a checkpoint, the
+     * output is appended to.
+     */
+    protected OutputStream createOutputStream (File file, boolean append)
+        throws IOException
+    {
+        if (_blockGZip) {
+            return new BlockGZipOutputStream(file, _compressionThreads, append);
+        }
+        return new FileOutputStream(file, append);
+    }
+
+    /**
+     * If true, the output is written as block gzipped (BGZF) data with a ".gzi" block index next
+     * to it, so that it can later be read in parallel by a {@link GZipLineReader}. Defaults to
+     * false, so output is written as is whatever its name.
+     */
+    public void setBlockGZip (boolean blockGZip)
+    {
+        _blockGZip = blockGZip;
+    }
+
+    /**
+     * If true, which is the default, in-place results are synced to disk before they are renamed
+     * over the original file. Turning this off is faster, but a crash right after the rename can
+     * lose the new contents.
+     */
+    public void setSync (boolean sync)
+    {
+        _sync = sync;
+    }
+
+    /**
+     * Sets the number of threads compressing block gzipped output. Defaults to the number of
+     * available processors.
+     */
+    public void setCompressionThreads (int threads)
+    {
+        _compressionThreads = threads;
+    }
+
     /**
      * Optionally sets the character encoding for the output file. If not set, the same encoding
      * as the input file will be used.
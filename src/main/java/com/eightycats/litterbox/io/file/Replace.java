@@ -14,8 +14,22 @@
 
 package com.eightycats.litterbox.io.file;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.eightycats.litterbox.util.AhoCorasick;
+
 /**
- * Replace text on each line.
+ * Replace text on each line. The text to replace is either a regular expression, a literal
+ * string, or a whole dictionary of literal strings, which are all replaced in one pass over each
+ * line.
  */
 public class Replace extends Cat
 {
@@ -25,32 +39,109 @@ public class Replace extends Cat
 
     protected boolean _all;
 
+    /**
+     * The compiled regular expression, if replacing one.
+     */
+    protected Matcher _matcher;
+
+    /**
+     * The literal strings being replaced, if not replacing a regular expression.
+     */
+    protected AhoCorasick _literals;
+
     public Replace (String pattern, String replacement)
     {
         this(pattern, replacement, true);
     }
 
+    /**
+     * @param all
+     *            if true, the pattern is a regular expression, and all matches are replaced as
+     *            by String.replaceAll(). Otherwise, the pattern is replaced literally.
+     */
     public Replace (String pattern, String replacement, boolean all)
     {
         _pattern = pattern;
         _replacement = replacement;
         _all = all;
+        if (all) {
+            _matcher = Pattern.compile(pattern).matcher("");
+        } else {
+            _literals = new AhoCorasick();
+            _literals.add(pattern, replacement);
+        }
+    }
+
+    /**
+     * Replaces each key in the given map with its value. Where keys overlap, the one that starts
+     * first wins, and then the longest.
+     */
+    public Replace (Map<String, String> replacements)
+    {
+        _literals = new AhoCorasick(replacements);
     }
 
     @Override
     protected void process (String line)
     {
-        if (_all) {
-            line = line.replaceAll(_pattern, _replacement);
+        if (_matcher != null) {
+            line = _matcher.reset(line).replaceAll(_replacement);
         } else {
-            line = line.replace(_pattern, _pattern);
+            line = _literals.replace(line);
         }
         println(line);
     }
 
+    @Override
+    protected boolean isStateless ()
+    {
+        return true;
+    }
+
+    /**
+     * Reads a dictionary of literal replacements from a file. Each line holds the text to
+     * replace, a tab, and what to replace it with. Lines without a tab are skipped.
+     */
+    public static Map<String, String> loadDictionary (String filePath, String encoding)
+        throws IOException
+    {
+        if (encoding == null) {
+            encoding = StandardCharsets.UTF_8.name();
+        }
+        Map<String, String> replacements = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+            filePath), encoding));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    replacements.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return replacements;
+    }
+
+    /**
+     * Usage: Replace file pattern replacement, or Replace file -f dictionary
+     */
     public static void main (String[] args)
     {
-        Replace replacer = new Replace(args[1], args[2]);
+        Replace replacer;
+        if ("-f".equals(args[1])) {
+            try {
+                replacer = new Replace(loadDictionary(args[2], null));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+        } else {
+            replacer = new Replace(args[1], args[2]);
+        }
         replacer.setVerbose(true);
         CatWriter.process(args[0], replacer);
     }
@@ -15,19 +15,38 @@
 package com.eightycats.litterbox.io.file;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Set;
 
+import com.eightycats.litterbox.util.CompactStringSet;
+
 /**
  * Reads the lines of a file into a Set.
  */
 public class SetReader extends CatResults
+    implements Mergeable<SetReader>
 {
     protected Set<String> _lines;
 
+    /**
+     * If true, lines are kept in a compact byte array backed set.
+     */
+    protected boolean _compact;
+
+    /**
+     * If true, lines are stored in a {@link CompactStringSet} rather than a HashSet. That uses a
+     * fraction of the memory, at the cost of creating Strings when the set is iterated. Combine
+     * this with byte lines to add UTF-8 or ASCII lines without creating Strings at all.
+     */
+    public void setCompact (boolean compact)
+    {
+        _compact = compact;
+    }
+
     protected Set<String> createSet ()
     {
-        return new HashSet<String>();
+        return _compact ? new CompactStringSet() : new HashSet<String>();
     }
 
     @Override
@@ -42,6 +61,23 @@ public class SetReader extends CatResults
         _lines.add(line);
     }
 
+    @Override
+    protected void process (ByteLine line)
+    {
+        if (_lines instanceof CompactStringSet
+            && (line.isAscii() || StandardCharsets.UTF_8.equals(line.getCharset()))) {
+            ((CompactStringSet) _lines).add(line.getBytes(), line.getOffset(), line.byteLength());
+        } else {
+            super.process(line);
+        }
+    }
+
+    @Override
+    public void merge (SetReader other)
+    {
+        _lines.addAll(other._lines);
+    }
+
     @Override
     public Set<String> getResults ()
     {
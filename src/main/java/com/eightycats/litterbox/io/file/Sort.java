@@ -15,47 +15,203 @@
 package com.eightycats.litterbox.io.file;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 /**
- * Reads a file, sorts it, and spits out the result.
+ * Reads a file, sorts it, and spits out the result. If a memory budget is set, lines are spilled
+ * to sorted temp files whenever the budget fills up, and the temp files are merged back together
+ * when the results are written out. That way files much bigger than the heap can be sorted.
+ * Either way, getResults() returns the sorted lines after the read; call close() when done with
+ * them to delete any temp files.
  */
 public class Sort extends CatResults
+    implements Mergeable<Sort>
 {
+    /**
+     * Rough per-line overhead, in bytes, of holding a String in the results list.
+     */
+    protected static final int LINE_OVERHEAD = 48;
+
     protected List<String> _results = new ArrayList<String>();
 
+    /**
+     * Roughly how many bytes of heap the lines in memory can use, or zero to keep everything in
+     * memory.
+     */
+    protected long _memoryBudget;
+
+    /**
+     * Roughly how many bytes the lines currently in memory are using.
+     */
+    protected long _bufferedBytes;
+
+    /**
+     * How many runs can be sorted at the same time.
+     */
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Lines that have been spilled to disk, if we went over the memory budget.
+     */
+    protected SortedRuns _runs;
+
+    /**
+     * The merged lines from the runs.
+     */
+    protected Iterable<String> _merged;
+
+    public Sort ()
+    {
+    }
+
+    /**
+     * @param memoryBudget
+     *            roughly how many bytes of heap to use before spilling to temp files.
+     */
+    public Sort (long memoryBudget)
+    {
+        setMemoryBudget(memoryBudget);
+    }
+
+    /**
+     * Sets roughly how many bytes of heap to use before spilling sorted runs to temp files. The
+     * budget is shared between the lines being read and the runs being sorted. Zero, the
+     * default, keeps everything in memory.
+     */
+    public void setMemoryBudget (long memoryBudget)
+    {
+        _memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets how many spilled runs can be sorted at the same time.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
     @Override
     protected void start (File file)
     {
+        cleanup();
         _results.clear();
+        _bufferedBytes = 0;
     }
 
     @Override
     protected void process (String line)
     {
         _results.add(line);
+        if (_memoryBudget > 0) {
+            _bufferedBytes += LINE_OVERHEAD + 2L * line.length();
+            // the lines being read and each run being sorted get an equal share of the budget
+            if (_bufferedBytes >= _memoryBudget / (_threads + 1)) {
+                spill();
+            }
+        }
+    }
+
+    @Override
+    public void merge (Sort other)
+    {
+        for (String line : other._results) {
+            process(line);
+        }
+        if (other._runs != null) {
+            try {
+                if (_runs == null) {
+                    _runs = new SortedRuns(_threads);
+                }
+                _runs.addAll(other._runs);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not merge sorted runs.", ex);
+            }
+        }
     }
 
     @Override
     protected void done (File file)
     {
-        Collections.sort(_results);
-        super.done(file);
+        try {
+            if (_runs != null) {
+                if (!_results.isEmpty()) {
+                    spill();
+                }
+                _merged = _runs.merge();
+            } else {
+                Collections.sort(_results);
+            }
+            super.done(file);
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            cleanup();
+        }
+    }
+
+    /**
+     * Deletes the temp files holding the results, if the lines were spilled to disk. Until this
+     * is called, or the next read starts, getResults() reads the sorted lines from them.
+     */
+    public void close ()
+    {
+        cleanup();
     }
 
+    /**
+     * Returns the sorted lines once the file has been read. If the lines were spilled, they are
+     * read back from temp files that are kept until close() is called.
+     */
     @Override
     public Iterable<String> getResults ()
     {
-        return _results;
+        return _merged != null ? _merged : _results;
+    }
+
+    /**
+     * Hands the lines in memory off to be sorted and written to a temp file.
+     */
+    protected void spill ()
+    {
+        if (_runs == null) {
+            _runs = new SortedRuns(_threads);
+        }
+        try {
+            _runs.add(_results);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not spill sorted run.", ex);
+        }
+        _results = new ArrayList<String>();
+        _bufferedBytes = 0;
+    }
+
+    /**
+     * Deletes any temp files.
+     */
+    protected void cleanup ()
+    {
+        if (_runs != null) {
+            _runs.delete();
+            _runs = null;
+        }
+        _merged = null;
     }
 
     public static void main (String[] args)
     {
-        Sort sorter = new Sort();
+        // by default, spill to disk once a quarter of the heap is full of lines
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        if (args.length > 1) {
+            budget = Long.parseLong(args[1]) * 1024 * 1024;
+        }
+        Sort sorter = new Sort(budget);
         sorter.setVerbose(true);
         // file will get sorter in place
         CatWriter.process(args[0], sorter);
+        sorter.close();
     }
 }
@@ -0,0 +1,367 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.eightycats.litterbox.util.DaemonThreadFactory;
+
+/**
+ * Sorted runs of lines spilled to temp files for an external merge sort. Each batch of lines
+ * added is sorted and written out on a worker thread. Once all of the lines have been added, the
+ * runs are merged back together in sorted order with a k-way heap merge.
+ */
+public class SortedRuns
+{
+    /**
+     * The most run files that get merged at once. If there are more runs than this, they are
+     * merged down in several passes.
+     */
+    public static final int MAX_FAN_IN = 128;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected Comparator<? super String> _comparator;
+
+    protected int _threads;
+
+    protected File _tempDir;
+
+    protected ExecutorService _executor;
+
+    /**
+     * Runs that are being sorted and written, in the order they were added.
+     */
+    protected LinkedList<Future<File>> _pending = new LinkedList<Future<File>>();
+
+    /**
+     * Runs that have been written, in the order they were added.
+     */
+    protected List<File> _files = new ArrayList<File>();
+
+    /**
+     * Sorts runs using the lines' natural order.
+     */
+    public SortedRuns (int threads)
+    {
+        this(null, threads);
+    }
+
+    public SortedRuns (Comparator<? super String> comparator, int threads)
+    {
+        _comparator = comparator;
+        _threads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets the directory where runs are written. Defaults to java.io.tmpdir.
+     */
+    public void setTempDir (File tempDir)
+    {
+        _tempDir = tempDir;
+    }
+
+    /**
+     * Sorts the given lines and writes them out as a new run. This returns right away, unless
+     * there are already as many runs being sorted as there are threads, in which case it waits
+     * for the oldest one to finish. The list must not be modified after it is added.
+     */
+    public void add (final List<String> lines)
+        throws IOException
+    {
+        if (_executor == null) {
+            _executor = Executors.newFixedThreadPool(_threads,
+                new DaemonThreadFactory("SortedRuns"));
+        }
+        try {
+            while (_pending.size() >= _threads) {
+                _files.add(get(_pending.removeFirst()));
+            }
+        } catch (IOException ex) {
+            // the caller may never get to delete() us, so do not leave the workers running
+            _executor.shutdownNow();
+            _executor = null;
+            throw ex;
+        }
+        _pending.add(_executor.submit(new Callable<File>() {
+            @Override public File call () throws IOException {
+                Collections.sort(lines, _comparator);
+                return write(lines.iterator());
+            }
+        }));
+    }
+
+    /**
+     * Adds a file whose lines are already sorted as the next run. The file will get deleted along
+     * with the other runs.
+     */
+    public void addRun (File run)
+        throws IOException
+    {
+        finish();
+        _files.add(run);
+    }
+
+    /**
+     * Takes over the runs from another instance, which hold lines that came after ours.
+     */
+    public void addAll (SortedRuns other)
+        throws IOException
+    {
+        other.finish();
+        finish();
+        _files.addAll(other._files);
+        other._files.clear();
+    }
+
+    /**
+     * Returns the number of runs added so far.
+     */
+    public int size ()
+    {
+        return _files.size() + _pending.size();
+    }
+
+    /**
+     * Waits for all of the runs to be written, and returns all of the lines in sorted order. The
+     * returned lines are read lazily from the run files, so this must not be deleted until the
+     * iteration is done.
+     */
+    public Iterable<String> merge ()
+        throws IOException
+    {
+        finish();
+        while (_files.size() > MAX_FAN_IN) {
+            List<File> batch = new ArrayList<File>(_files.subList(0, MAX_FAN_IN));
+            _files.subList(0, MAX_FAN_IN).clear();
+            _files.add(write(new MergeIterator(batch)));
+            for (File file : batch) {
+                file.delete();
+            }
+        }
+
+        final List<File> files = new ArrayList<File>(_files);
+        return new Iterable<String>() {
+            @Override public Iterator<String> iterator () {
+                try {
+                    return new MergeIterator(files);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Could not open sorted runs.", ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Deletes all of the run files.
+     */
+    public void delete ()
+    {
+        try {
+            finish();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        for (File file : _files) {
+            file.delete();
+        }
+        _files.clear();
+    }
+
+    /**
+     * Waits for any runs still being sorted, and shuts down the worker threads.
+     */
+    protected void finish ()
+        throws IOException
+    {
+        try {
+            while (!_pending.isEmpty()) {
+                _files.add(get(_pending.removeFirst()));
+            }
+        } finally {
+            if (_executor != null) {
+                _executor.shutdown();
+                _executor = null;
+            }
+        }
+    }
+
+    protected File get (Future<File> run)
+        throws IOException
+    {
+        try {
+            return run.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sorting.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not sort run.", ex.getCause());
+        }
+    }
+
+    /**
+     * Writes the given lines out to a new temp file.
+     */
+    protected File write (Iterator<String> lines)
+        throws IOException
+    {
+        File file = File.createTempFile("litterbox", ".run", _tempDir);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+            StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            while (lines.hasNext()) {
+                out.write(lines.next());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * The next line from one run.
+     */
+    protected static class Head
+    {
+        public BufferedReader reader;
+
+        public String line;
+
+        /**
+         * Used to keep equal lines in run order.
+         */
+        public int index;
+    }
+
+    /**
+     * Merges several sorted run files using a priority queue holding the next line from each.
+     */
+    protected class MergeIterator
+        implements Iterator<String>
+    {
+        protected PriorityQueue<Head> _heads;
+
+        public MergeIterator (List<File> files)
+            throws IOException
+        {
+            _heads = new PriorityQueue<Head>(Math.max(1, files.size()), new Comparator<Head>() {
+                @Override public int compare (Head head1, Head head2) {
+                    int result = compareLines(head1.line, head2.line);
+                    return result != 0 ? result : head1.index - head2.index;
+                }
+            });
+
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    Head head = new Head();
+                    head.index = i;
+                    head.reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                        files.get(i)), StandardCharsets.UTF_8), BUFFER_SIZE);
+                    advance(head);
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public boolean hasNext ()
+        {
+            return !_heads.isEmpty();
+        }
+
+        @Override
+        public String next ()
+        {
+            Head head = _heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            String line = head.line;
+            try {
+                advance(head);
+            } catch (IOException ex) {
+                close();
+                throw new IllegalStateException("Could not read sorted run.", ex);
+            }
+            return line;
+        }
+
+        @Override
+        public void remove ()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Reads the next line for the given run, and puts it back in the queue. Closes the run if
+         * there are no more lines.
+         */
+        protected void advance (Head head)
+            throws IOException
+        {
+            head.line = head.reader.readLine();
+            if (head.line != null) {
+                _heads.add(head);
+            } else {
+                head.reader.close();
+            }
+        }
+
+        protected void close ()
+        {
+            for (Head head : _heads) {
+                try {
+                    head.reader.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            _heads.clear();
+        }
+    }
+
+    protected int compareLines (String line1, String line2)
+    {
+        return _comparator != null ? _comparator.compare(line1, line2) : line1.compareTo(line2);
+    }
+}
@@ -3,15 +3,18 @@ package com.eightycats.litterbox.io.file;
 import java.util.Set;
 import java.util.TreeSet;
 
+import com.eightycats.litterbox.util.SortedCompactStringSet;
+
 /**
- * Reads lines from a file into a sorted set.
+ * Reads lines from a file into a sorted set. Note that compact sets sort by code point, which only
+ * differs from String order for characters outside the Basic Multilingual Plane.
  */
 public class SortedSetReader extends SetReader
 {
     @Override
     protected Set<String> createSet ()
     {
-        return new TreeSet<String>();
+        return _compact ? new SortedCompactStringSet() : new TreeSet<String>();
     }
 
     public static void main (String[] args)
@@ -14,15 +14,36 @@
 
 package com.eightycats.litterbox.io.file;
 
+import java.io.File;
 import java.util.StringTokenizer;
 
 /**
- * Base class for reading a text file and parsing each line into tokens.
+ * Base class for reading a text file and parsing each line into tokens. Subclasses implement
+ * process(StringTokenizer), or override process(FieldCursor) to look at the fields in place
+ * instead, in which case the line is never tokenized.
+ * <p>
+ * In CSV mode, lines are split as described by RFC 4180, and a quoted field that runs past the
+ * end of a line is joined up with the lines after it.
  */
 public abstract class Splitter extends LineReader
 {
     protected String _delimiters;
 
+    protected boolean _csv;
+
+    protected FieldCursor _cursor;
+
+    /**
+     * True if the subclass overrides process(FieldCursor). Otherwise lines only go through the
+     * cursor in CSV mode, so that quoted fields can span lines.
+     */
+    protected boolean _fieldCursor;
+
+    /**
+     * The start of a CSV record whose quoted field has not been closed yet.
+     */
+    protected StringBuilder _pending;
+
     public Splitter ()
     {
         this(",|\t ");
@@ -31,16 +52,97 @@ public abstract class Splitter extends LineReader
     public Splitter (String delimiters)
     {
         setDelimiters(delimiters);
+        _fieldCursor = overridesFieldCursor(getClass());
     }
 
     @Override
     protected void process (String line)
     {
-        process(new StringTokenizer(line, getDelimiters()));
+        split(line);
+    }
+
+    /**
+     * Splits the line in place, without decoding it into a String.
+     */
+    @Override
+    protected void process (ByteLine line)
+    {
+        split(line);
     }
 
+    protected void split (CharSequence line)
+    {
+        if (!_csv && !_fieldCursor) {
+            // no need to find the fields if they just go to a StringTokenizer
+            process(new StringTokenizer(line.toString(), getDelimiters()));
+            return;
+        }
+
+        if (_pending != null) {
+            line = _pending.append('\n').append(line);
+        }
+
+        FieldCursor cursor = getCursor();
+        cursor.set(line);
+        if (!cursor.isComplete()) {
+            if (_pending == null) {
+                _pending = new StringBuilder(line);
+            }
+            return;
+        }
+        process(cursor);
+        _pending = null;
+    }
+
+    @Override
+    protected void done (File file)
+    {
+        // a quote that is never closed takes the rest of the file
+        if (_pending != null) {
+            process(getCursor().set(_pending));
+            _pending = null;
+        }
+    }
+
+    /**
+     * Called with each line's fields. The cursor is only valid until this returns. By default,
+     * this hands a StringTokenizer over the line to process(StringTokenizer).
+     */
+    protected void process (FieldCursor fields)
+    {
+        process(new StringTokenizer(fields.getLine().toString(), getDelimiters()));
+    }
+
+    /**
+     * Called with each line's tokens if process(FieldCursor) is not overridden.
+     */
     protected abstract void process (StringTokenizer tokens);
 
+    /**
+     * Checks whether the given subclass, or a class between it and Splitter, declares
+     * process(FieldCursor).
+     */
+    protected static boolean overridesFieldCursor (Class<?> type)
+    {
+        for (; type != Splitter.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod("process", FieldCursor.class);
+                return true;
+            } catch (NoSuchMethodException ex) {
+                // keep looking
+            }
+        }
+        return false;
+    }
+
+    protected FieldCursor getCursor ()
+    {
+        if (_cursor == null) {
+            _cursor = new FieldCursor(getDelimiters(), _csv);
+        }
+        return _cursor;
+    }
+
     protected String getDelimiters ()
     {
         return _delimiters;
@@ -49,5 +151,16 @@ public abstract class Splitter extends LineReader
     protected void setDelimiters (String delimiters)
     {
         _delimiters = delimiters;
+        _cursor = null;
+    }
+
+    /**
+     * If true, lines are split as comma separated values, as described by RFC 4180, using the
+     * delimiters given. Otherwise, they are split the same way StringTokenizer splits them.
+     */
+    public void setCSV (boolean csv)
+    {
+        _csv = csv;
+        _cursor = null;
     }
 }
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Does a regular expression search and replace over a stream of text without reading all of it
+ * into memory. The text is matched a window at a time. Matches are allowed to span lines, but may
+ * be at most a configured number of characters long; longer matches could be cut short where
+ * windows meet. The same number of characters from before each window are kept around so that
+ * lookbehinds and word boundaries still work.
+ * <p>
+ * Replacement strings support the same $n, ${name} and backslash escapes as
+ * Matcher.appendReplacement().
+ */
+public class StreamingReplace
+{
+    /**
+     * The default maximum match length, in characters.
+     */
+    public static final int DEFAULT_MAX_MATCH = 64 * 1024;
+
+    /**
+     * The default number of new characters matched per window.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1024 * 1024;
+
+    protected Pattern _pattern;
+
+    protected String _replacement;
+
+    protected int _maxMatchLength;
+
+    protected int _windowSize = DEFAULT_WINDOW_SIZE;
+
+    public StreamingReplace (String regex, String replacement)
+    {
+        this(Pattern.compile(regex), replacement, DEFAULT_MAX_MATCH);
+    }
+
+    public StreamingReplace (Pattern pattern, String replacement, int maxMatchLength)
+    {
+        _pattern = pattern;
+        _replacement = replacement;
+        _maxMatchLength = maxMatchLength;
+    }
+
+    /**
+     * Sets the number of new characters matched per window.
+     */
+    public void setWindowSize (int windowSize)
+    {
+        _windowSize = windowSize;
+    }
+
+    /**
+     * Replaces all matches in the given file, in place. The results are written to a temp file
+     * in the same directory, which then replaces the original.
+     *
+     * @return the number of replacements made.
+     */
+    public long replace (File file, String encoding)
+        throws IOException
+    {
+        if (encoding == null) {
+            encoding = StandardCharsets.UTF_8.name();
+        }
+
+        File temp = FileUtils.createSiblingTempFile(file);
+        long count;
+        try {
+            Reader input = new InputStreamReader(new FileInputStream(file), encoding);
+            try {
+                Writer output = new OutputStreamWriter(new FileOutputStream(temp), encoding);
+                try {
+                    count = replace(input, output);
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+            FileUtils.replaceAtomically(temp, file, false);
+
+        } finally {
+            temp.delete();
+        }
+        return count;
+    }
+
+    /**
+     * Copies the input to the output, replacing all matches.
+     *
+     * @return the number of replacements made.
+     */
+    public long replace (Reader input, Writer output)
+        throws IOException
+    {
+        // room for the look behind context, a full window, and a max length match past it
+        char[] buffer = new char[2 * _maxMatchLength + _windowSize];
+        int context = 0;
+        int length = 0;
+        boolean eof = false;
+        long count = 0;
+
+        Matcher matcher = _pattern.matcher("");
+        StringBuilder replacement = new StringBuilder();
+        char[] replaced = new char[64];
+
+        while (!eof || length > context) {
+            while (!eof && length < buffer.length) {
+                int read = input.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    length += read;
+                }
+            }
+
+            // until we hit the end, only matches that start before this are final
+            int safe = eof ? length : length - _maxMatchLength;
+
+            matcher.reset(CharBuffer.wrap(buffer, 0, length));
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+            matcher.region(context, length);
+
+            int written = context;
+            while (matcher.find() && (eof || matcher.start() < safe)) {
+                output.write(buffer, written, matcher.start() - written);
+
+                replacement.setLength(0);
+                appendReplacement(matcher, replacement);
+                if (replaced.length < replacement.length()) {
+                    replaced = new char[replacement.length() * 2];
+                }
+                replacement.getChars(0, replacement.length(), replaced, 0);
+                output.write(replaced, 0, replacement.length());
+
+                written = matcher.end();
+                count++;
+            }
+
+            int cut = Math.max(written, safe);
+            output.write(buffer, written, cut - written);
+
+            // keep some of what we have written as context for the next window
+            int keep = Math.max(0, cut - _maxMatchLength);
+            System.arraycopy(buffer, keep, buffer, 0, length - keep);
+            context = cut - keep;
+            length -= keep;
+        }
+        output.flush();
+        return count;
+    }
+
+    /**
+     * Expands the replacement string for the current match, like Matcher.appendReplacement()
+     * without the text in front of the match.
+     */
+    protected void appendReplacement (Matcher matcher, StringBuilder result)
+    {
+        String replacement = _replacement;
+        int length = replacement.length();
+        for (int i = 0; i < length; i++) {
+            char ch = replacement.charAt(i);
+            if (ch == '\\') {
+                if (++i == length) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                result.append(replacement.charAt(i));
+
+            } else if (ch != '$') {
+                result.append(ch);
+
+            } else if (i + 1 == length) {
+                throw new IllegalArgumentException(
+                    "Illegal group reference: group index is missing");
+
+            } else if (replacement.charAt(i + 1) == '{') {
+                int end = replacement.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Missing '}' in replacement: "
+                        + replacement);
+                }
+                String group = matcher.group(replacement.substring(i + 2, end));
+                if (group != null) {
+                    result.append(group);
+                }
+                i = end;
+
+            } else if (isDigit(replacement.charAt(i + 1))) {
+                // take as many digits as still make a valid group number
+                int group = replacement.charAt(++i) - '0';
+                while (i + 1 < length && isDigit(replacement.charAt(i + 1))) {
+                    int next = group * 10 + replacement.charAt(i + 1) - '0';
+                    if (next > matcher.groupCount()) {
+                        break;
+                    }
+                    group = next;
+                    i++;
+                }
+                String text = matcher.group(group);
+                if (text != null) {
+                    result.append(text);
+                }
+
+            } else {
+                throw new IllegalArgumentException("Illegal group reference");
+            }
+        }
+    }
+
+    protected static boolean isDigit (char ch)
+    {
+        return ch >= '0' && ch <= '9';
+    }
+}
@@ -15,38 +15,270 @@
 package com.eightycats.litterbox.io.file;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.LinkedHashSet;
 
 /**
  * Removes duplicate lines from a file. Note that this trims the lines.
+ * <p>
+ * If a memory budget is set and the unique lines outgrow it, the lines are spilled into hash
+ * partitioned buckets on disk and deduplicated a bucket at a time. See {@link UniqueBuckets}.
  */
 public class Unique extends CatResults
+    implements Mergeable<Unique>
 {
+    /**
+     * Rough per-line overhead, in bytes, of holding a String in a LinkedHashSet.
+     */
+    protected static final int LINE_OVERHEAD = 100;
+
+    /**
+     * The most buckets we will spill to.
+     */
+    protected static final int MAX_PARTITIONS = 1024;
+
     protected LinkedHashSet<String> _existing = new LinkedHashSet<String>();
 
+    /**
+     * Roughly how many bytes of heap the unique lines can use, or zero to keep everything in
+     * memory.
+     */
+    protected long _memoryBudget;
+
+    /**
+     * Roughly how many bytes the lines currently in memory are using.
+     */
+    protected long _bufferedBytes;
+
+    /**
+     * Roughly how many bytes of the input have been read.
+     */
+    protected long _bytesRead;
+
+    /**
+     * The size of the input file, used to guess how many buckets we need.
+     */
+    protected long _fileLength;
+
+    /**
+     * The number of buckets to spill to, or zero to pick based on the file size.
+     */
+    protected int _partitions;
+
+    /**
+     * If true, spilled lines are written out in the order they first appeared.
+     */
+    protected boolean _keepOrder = true;
+
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The bucket files, if we went over the memory budget.
+     */
+    protected UniqueBuckets _buckets;
+
+    /**
+     * The deduplicated lines from the buckets.
+     */
+    protected Iterable<String> _spilled;
+
+    public Unique ()
+    {
+    }
+
+    /**
+     * @param memoryBudget
+     *            roughly how many bytes of heap to use before spilling to temp files.
+     */
+    public Unique (long memoryBudget)
+    {
+        setMemoryBudget(memoryBudget);
+    }
+
+    /**
+     * Sets roughly how many bytes of heap to use before spilling lines to bucket files. Zero, the
+     * default, keeps everything in memory.
+     */
+    public void setMemoryBudget (long memoryBudget)
+    {
+        _memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the number of bucket files to spill to. By default, this is picked so each bucket
+     * should fit in its share of the memory budget.
+     */
+    public void setPartitions (int partitions)
+    {
+        _partitions = partitions;
+    }
+
+    /**
+     * If false, spilled lines are written out bucket by bucket rather than in the order they first
+     * appeared, which saves recording and merging sequence numbers. Defaults to true.
+     */
+    public void setKeepOrder (boolean keepOrder)
+    {
+        _keepOrder = keepOrder;
+    }
+
+    /**
+     * Sets how many buckets can be deduplicated at the same time.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
     @Override
     protected void start (File file)
     {
+        cleanup();
         _existing.clear();
+        _bufferedBytes = 0;
+        _bytesRead = 0;
+        _fileLength = file.length();
     }
 
     @Override
     protected void process (String line)
     {
-        _existing.add(line.trim());
+        line = line.trim();
+        _bytesRead += line.length() + 1;
+        if (_buckets != null) {
+            add(line);
+        } else if (_existing.add(line) && _memoryBudget > 0) {
+            _bufferedBytes += LINE_OVERHEAD + 2L * line.length();
+            if (_bufferedBytes >= _memoryBudget) {
+                spill();
+            }
+        }
+    }
+
+    @Override
+    public void merge (Unique other)
+    {
+        if (other._buckets == null && _buckets == null) {
+            // the other lines came later, so existing lines keep their original position
+            _existing.addAll(other._existing);
+            return;
+        }
+
+        if (_buckets == null) {
+            spill(_partitions > 0 ? _partitions : other._buckets.getPartitions());
+        }
+        try {
+            Iterable<String> lines = other._existing;
+            if (other._buckets != null) {
+                // the other reader's unique lines, in the order they first appeared
+                lines = other._buckets.dedupe();
+            }
+            for (String line : lines) {
+                add(line);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not read spilled lines.", ex);
+        } finally {
+            other.cleanup();
+        }
+    }
+
+    @Override
+    protected void done (File file)
+    {
+        try {
+            if (_buckets != null) {
+                _spilled = _buckets.dedupe();
+            }
+            super.done(file);
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            cleanup();
+        }
+    }
+
+    /**
+     * Deletes the temp files holding the results, if the lines were spilled to disk. Until this
+     * is called, or the next read starts, getResults() reads the unique lines from them.
+     */
+    public void close ()
+    {
+        cleanup();
     }
 
     @Override
     public Iterable<String> getResults ()
     {
-        return _existing;
+        return _spilled != null ? _spilled : _existing;
+    }
+
+    /**
+     * Moves the unique lines in memory out to bucket files. All lines after this go straight to
+     * the buckets.
+     */
+    protected void spill ()
+    {
+        int partitions = _partitions;
+        if (partitions <= 0) {
+            // guess how much memory the whole file would take, and give each of the buckets
+            // being deduplicated at the same time an equal share of the budget
+            double scale = _fileLength > _bytesRead ? (double) _fileLength / _bytesRead : 2;
+            double buckets = scale * _bufferedBytes * _threads / _memoryBudget;
+            partitions = (int) Math.min(MAX_PARTITIONS, Math.max(_threads, 2 * buckets));
+        }
+        spill(partitions);
+    }
+
+    /**
+     * Moves the unique lines in memory out to the given number of bucket files.
+     */
+    protected void spill (int partitions)
+    {
+        try {
+            _buckets = new UniqueBuckets(partitions, _keepOrder, _threads);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not create bucket files.", ex);
+        }
+        for (String line : _existing) {
+            add(line);
+        }
+        _existing.clear();
+        _bufferedBytes = 0;
+    }
+
+    protected void add (String line)
+    {
+        try {
+            _buckets.add(line);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write to bucket file.", ex);
+        }
+    }
+
+    /**
+     * Deletes any temp files.
+     */
+    protected void cleanup ()
+    {
+        if (_buckets != null) {
+            _buckets.delete();
+            _buckets = null;
+        }
+        _spilled = null;
     }
 
     public static void main (String[] args)
     {
-        Unique unique = new Unique();
+        // by default, spill to disk once a quarter of the heap is full of lines
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        if (args.length > 1) {
+            budget = Long.parseLong(args[1]) * 1024 * 1024;
+        }
+        Unique unique = new Unique(budget);
         unique.setVerbose(true);
         // remove duplicates in place
         CatWriter.process(args[0], unique);
+        unique.close();
     }
 }
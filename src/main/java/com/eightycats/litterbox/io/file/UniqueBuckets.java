@@ -0,0 +1,306 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Removes duplicate lines using a bounded amount of memory. Lines are hash partitioned into
+ * bucket files on disk, so every copy of a line ends up in the same bucket. Each bucket is then
+ * small enough to deduplicate in memory on its own, and the buckets are deduplicated in
+ * parallel.
+ * <p>
+ * To keep lines in the order they first appeared, each line is written with its sequence number,
+ * and the deduplicated buckets are merged back together by sequence number.
+ */
+public class UniqueBuckets
+{
+    protected static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Number of hex digits in a sequence number prefix. Fixed width, so that sorting the prefixed
+     * lines as text sorts them by sequence number.
+     */
+    protected static final int SEQUENCE_LENGTH = 16;
+
+    protected static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Treats every line as equal, so merging the results just concatenates them in bucket order.
+     */
+    protected static final Comparator<String> CONCATENATE = new Comparator<String>() {
+        @Override public int compare (String line1, String line2) {
+            return 0;
+        }
+    };
+
+    protected File[] _files;
+
+    protected Writer[] _writers;
+
+    protected boolean _keepOrder;
+
+    protected int _threads;
+
+    protected File _tempDir;
+
+    protected long _sequence;
+
+    protected char[] _prefix = new char[SEQUENCE_LENGTH];
+
+    /**
+     * The deduplicated buckets.
+     */
+    protected SortedRuns _results;
+
+    public UniqueBuckets (int partitions, boolean keepOrder, int threads)
+        throws IOException
+    {
+        this(partitions, keepOrder, threads, null);
+    }
+
+    /**
+     * @param partitions
+     *            the number of bucket files to split the lines into.
+     * @param keepOrder
+     *            if true, lines will come back out in the order they were first added.
+     * @param threads
+     *            the number of buckets to deduplicate at the same time.
+     * @param tempDir
+     *            where to write the bucket files, or null for java.io.tmpdir.
+     */
+    public UniqueBuckets (int partitions, boolean keepOrder, int threads, File tempDir)
+        throws IOException
+    {
+        _keepOrder = keepOrder;
+        _threads = Math.max(1, threads);
+        _tempDir = tempDir;
+        _files = new File[partitions];
+        _writers = new Writer[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                _files[i] = File.createTempFile("litterbox", ".bucket", tempDir);
+                _writers[i] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    _files[i]), StandardCharsets.UTF_8), BUFFER_SIZE);
+            }
+        } catch (IOException ex) {
+            delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the number of bucket files.
+     */
+    public int getPartitions ()
+    {
+        return _files.length;
+    }
+
+    /**
+     * Adds a line to its bucket.
+     */
+    public void add (String line)
+        throws IOException
+    {
+        Writer out = _writers[(line.hashCode() & Integer.MAX_VALUE) % _writers.length];
+        if (_keepOrder) {
+            long sequence = _sequence++;
+            for (int i = SEQUENCE_LENGTH - 1; i >= 0; i--) {
+                _prefix[i] = HEX[(int) (sequence & 0xF)];
+                sequence >>>= 4;
+            }
+            out.write(_prefix);
+        }
+        out.write(line);
+        out.write('\n');
+    }
+
+    /**
+     * Deduplicates all of the buckets and returns the unique lines. The lines are read lazily
+     * from temp files, so this must not be deleted until the iteration is done.
+     */
+    public Iterable<String> dedupe ()
+        throws IOException
+    {
+        closeWriters();
+
+        List<Future<File>> buckets = new ArrayList<Future<File>>();
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+        try {
+            for (final File file : _files) {
+                buckets.add(executor.submit(new Callable<File>() {
+                    @Override public File call () throws IOException {
+                        return dedupe(file);
+                    }
+                }));
+            }
+
+            _results = new SortedRuns(_keepOrder ? null : CONCATENATE, 1);
+            _results.setTempDir(_tempDir);
+            for (int i = 0; i < buckets.size(); i++) {
+                try {
+                    _results.addRun(get(buckets.get(i)));
+                } catch (IOException ex) {
+                    discard(buckets.subList(i + 1, buckets.size()));
+                    throw ex;
+                }
+                // the bucket's unique lines are in the results now
+                _files[i].delete();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Iterable<String> merged = _results.merge();
+        if (!_keepOrder) {
+            return merged;
+        }
+        return new Iterable<String>() {
+            @Override public Iterator<String> iterator () {
+                final Iterator<String> lines = merged.iterator();
+                return new Iterator<String>() {
+                    @Override public boolean hasNext () {
+                        return lines.hasNext();
+                    }
+                    @Override public String next () {
+                        return lines.next().substring(SEQUENCE_LENGTH);
+                    }
+                    @Override public void remove () {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Deletes all of the temp files.
+     */
+    public void delete ()
+    {
+        closeWriters();
+        for (File file : _files) {
+            if (file != null) {
+                file.delete();
+            }
+        }
+        if (_results != null) {
+            _results.delete();
+            _results = null;
+        }
+    }
+
+    /**
+     * Writes the first copy of each line in the given bucket to a new temp file.
+     */
+    protected File dedupe (File bucket)
+        throws IOException
+    {
+        int prefix = _keepOrder ? SEQUENCE_LENGTH : 0;
+        Set<String> seen = new HashSet<String>();
+        File result = File.createTempFile("litterbox", ".unique", _tempDir);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(bucket),
+            StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(result),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    if (seen.add(line.substring(prefix))) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                    line = in.readLine();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            result.delete();
+            throw ex;
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the given buckets to be deduplicated and deletes the results, after another
+     * bucket has failed.
+     */
+    protected void discard (List<Future<File>> buckets)
+    {
+        for (Future<File> bucket : buckets) {
+            try {
+                get(bucket).delete();
+            } catch (IOException ex) {
+                // already failing
+            }
+        }
+    }
+
+    protected void closeWriters ()
+    {
+        for (int i = 0; i < _writers.length; i++) {
+            if (_writers[i] != null) {
+                try {
+                    _writers[i].close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                _writers[i] = null;
+            }
+        }
+    }
+
+    protected File get (Future<File> bucket)
+        throws IOException
+    {
+        try {
+            return bucket.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while removing duplicates.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not remove duplicates.", ex.getCause());
+        }
+    }
+}
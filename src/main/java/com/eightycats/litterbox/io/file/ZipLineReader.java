@@ -0,0 +1,345 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.io.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the lines of entries inside a zip file without extracting them to disk. Either one named
+ * entry or every entry matching a pattern is read. A single entry is read by the target reader.
+ * When several entries match, each is read on its own thread by a reader from the
+ * {@link ReaderFactory}, and the results are merged into the target in archive order, the same
+ * way {@link ParallelLineReader} merges chunks.
+ * <p>
+ * The archive is kept open along with an index of its entries, so reading more entries from the
+ * same zip file does not parse its central directory again. The index is rebuilt if the file
+ * changes. Call {@link #close()} to release the archive when done.
+ */
+public class ZipLineReader<R extends LineReader & Mergeable<? super R>>
+    implements FileReader
+{
+    /**
+     * The reader that all of the results get merged into.
+     */
+    protected R _target;
+
+    /**
+     * Creates a reader for each entry when reading several entries.
+     */
+    protected ReaderFactory<? extends R> _factory;
+
+    protected String _entryName;
+
+    protected Pattern _entryPattern;
+
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+
+    protected Index _index;
+
+    public ZipLineReader (R target, ReaderFactory<? extends R> factory)
+    {
+        _target = target;
+        _factory = factory;
+    }
+
+    /**
+     * Reads only the entry with the given name.
+     */
+    public void setEntry (String entryName)
+    {
+        _entryName = entryName;
+        _entryPattern = null;
+    }
+
+    /**
+     * Reads every file entry whose whole name matches the given regular expression. If neither
+     * this nor an entry name is set, every file entry in the archive is read.
+     */
+    public void setEntryPattern (String regex)
+    {
+        _entryPattern = Pattern.compile(regex);
+        _entryName = null;
+    }
+
+    /**
+     * Sets the number of threads used when several entries are read.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = threads;
+    }
+
+    public R getTarget ()
+    {
+        return _target;
+    }
+
+    @Override
+    public void read (String filePath)
+    {
+        read(filePath, null);
+    }
+
+    @Override
+    public void read (String filePath, String encoding)
+    {
+        File file = new File(filePath);
+        Charset charset = Charset.forName(_target.getEncoding(encoding));
+        _target.start(file);
+        try {
+            Index index = getIndex(file);
+            List<ZipEntry> entries = select(index);
+            if (entries.size() == 1) {
+                readEntry(_target, index.getZipFile(), entries.get(0), charset);
+            } else if (entries.size() > 1) {
+                ForkJoinPool pool = new ForkJoinPool(_threads);
+                try {
+                    _target.merge(pool.invoke(new EntryTask(file, index.getZipFile(), entries,
+                        charset, 0, entries.size())));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+
+        } catch (ParallelLineReader.ChunkException ex) {
+            ex.getCause().printStackTrace();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        _target.done(file);
+    }
+
+    /**
+     * Closes the cached archive.
+     */
+    public void close ()
+    {
+        if (_index != null) {
+            _index.close();
+            _index = null;
+        }
+    }
+
+    /**
+     * Returns the index for the given archive, reusing the cached one if it is still current.
+     */
+    protected Index getIndex (File file)
+        throws IOException
+    {
+        if (_index != null && !_index.isCurrent(file)) {
+            close();
+        }
+        if (_index == null) {
+            _index = new Index(file);
+        }
+        return _index;
+    }
+
+    protected List<ZipEntry> select (Index index)
+        throws FileNotFoundException
+    {
+        if (_entryName != null) {
+            ZipEntry entry = index.getEntry(_entryName);
+            if (entry == null) {
+                throw new FileNotFoundException("Entry [" + _entryName + "] not found in ["
+                    + index.getFile().getPath() + "]");
+            }
+            return Collections.singletonList(entry);
+        }
+
+        List<ZipEntry> results = new ArrayList<ZipEntry>();
+        for (ZipEntry entry : index.getEntries()) {
+            if (!entry.isDirectory()
+                && (_entryPattern == null || _entryPattern.matcher(entry.getName()).matches())) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Feeds the lines of one entry to the given reader.
+     */
+    protected static void readEntry (LineReader reader, ZipFile zip, ZipEntry entry,
+        Charset charset)
+        throws IOException
+    {
+        if (reader._byteLines) {
+            ByteLineScanner in = new ByteLineScanner(zip.getInputStream(entry), charset);
+            try {
+                ByteLine line = in.next();
+                while (line != null) {
+                    reader.process(line);
+                    line = in.next();
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                zip.getInputStream(entry), charset));
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    reader.process(line);
+                    line = in.readLine();
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a range of entries, splitting the range in half until there is one entry left.
+     */
+    protected class EntryTask extends RecursiveTask<R>
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected File _file;
+
+        protected ZipFile _zip;
+
+        protected List<ZipEntry> _entries;
+
+        protected Charset _charset;
+
+        protected int _from;
+
+        protected int _to;
+
+        public EntryTask (File file, ZipFile zip, List<ZipEntry> entries, Charset charset,
+            int from, int to)
+        {
+            _file = file;
+            _zip = zip;
+            _entries = entries;
+            _charset = charset;
+            _from = from;
+            _to = to;
+        }
+
+        @Override
+        protected R compute ()
+        {
+            if (_to - _from == 1) {
+                R reader = _factory.newReader();
+                reader.start(_file);
+                try {
+                    readEntry(reader, _zip, _entries.get(_from), _charset);
+                } catch (IOException ex) {
+                    throw new ParallelLineReader.ChunkException(ex);
+                }
+                return reader;
+            }
+
+            int middle = (_from + _to) >>> 1;
+            EntryTask right = new EntryTask(_file, _zip, _entries, _charset, middle, _to);
+            right.fork();
+            R results = new EntryTask(_file, _zip, _entries, _charset, _from, middle).compute();
+            results.merge(right.join());
+            return results;
+        }
+    }
+
+    /**
+     * An open archive and the entries listed in its central directory.
+     */
+    protected static class Index
+    {
+        protected File _file;
+
+        protected long _lastModified;
+
+        protected long _length;
+
+        protected ZipFile _zip;
+
+        protected List<ZipEntry> _entries = new ArrayList<ZipEntry>();
+
+        protected Map<String, ZipEntry> _byName = new HashMap<String, ZipEntry>();
+
+        public Index (File file)
+            throws IOException
+        {
+            _file = file.getCanonicalFile();
+            _lastModified = _file.lastModified();
+            _length = _file.length();
+            _zip = new ZipFile(_file);
+            Enumeration<? extends ZipEntry> entries = _zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                _entries.add(entry);
+                _byName.put(entry.getName(), entry);
+            }
+        }
+
+        /**
+         * Checks that this indexes the given file, and that the file has not changed since.
+         */
+        public boolean isCurrent (File file)
+            throws IOException
+        {
+            return _file.equals(file.getCanonicalFile()) && _lastModified == file.lastModified()
+                && _length == file.length();
+        }
+
+        public File getFile ()
+        {
+            return _file;
+        }
+
+        public ZipFile getZipFile ()
+        {
+            return _zip;
+        }
+
+        public List<ZipEntry> getEntries ()
+        {
+            return _entries;
+        }
+
+        public ZipEntry getEntry (String name)
+        {
+            return _byName.get(name);
+        }
+
+        public void close ()
+        {
+            try {
+                _zip.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
@@ -16,8 +16,16 @@ package com.eightycats.litterbox.io.file;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.*;
 
 import com.eightycats.litterbox.io.StreamUtils;
@@ -33,33 +41,14 @@ public class ZipUtils
         zip(zipFile, new File[] { dir });
     }
 
+    /**
+     * Zips the given files and directories, deflating on all available cores. See
+     * {@link ParallelZipWriter}.
+     */
     public static void zip (String zipFile, File[] entries) throws FileNotFoundException,
         IOException
     {
-        File file = new File(zipFile);
-
-        // make sure that the output directory exists
-        FileUtils.makeParentDirs(file);
-
-        FileOutputStream stream = new FileOutputStream(file);
-        ZipOutputStream output = new ZipOutputStream(stream);
-
-        try {
-            zip(output, entries);
-        } finally {
-            try {
-                output.flush();
-            } catch (Exception ex) {
-            }
-
-            try {
-                output.close();
-            } catch (Exception ex) {
-                StreamUtils.close(stream);
-            }
-
-        }
-
+        new ParallelZipWriter().zip(new File(zipFile), entries);
     }
 
     public static void zip (ZipOutputStream output, File[] entries) throws FileNotFoundException,
@@ -118,6 +107,106 @@ public class ZipUtils
 
     public static void unzip (String zipFile, String destination) throws FileNotFoundException,
         IOException
+    {
+        unzip(zipFile, destination, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Extracts an archive using the given number of threads. The entries are read from the
+     * central directory with ZipFile, their directories are all created first, and then the
+     * entries are inflated concurrently, largest first.
+     */
+    public static void unzip (String zipFile, String destination, int threads)
+        throws FileNotFoundException, IOException
+    {
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            List<ZipEntry> files = new ArrayList<ZipEntry>();
+            Set<File> directories = new LinkedHashSet<File>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    files.add(entry);
+                    directories.add(new File(destination + File.separator
+                        + entry.getName()).getParentFile());
+                }
+            }
+            for (File directory : directories) {
+                directory.mkdirs();
+            }
+
+            // starting the big entries first keeps one of them from finishing on its own
+            Collections.sort(files, new Comparator<ZipEntry>() {
+                @Override public int compare (ZipEntry a, ZipEntry b) {
+                    return Long.compare(b.getSize(), a.getSize());
+                }
+            });
+
+            final AtomicReference<IOException> error = new AtomicReference<IOException>();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 64),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            try {
+                for (final ZipEntry entry : files) {
+                    if (error.get() != null) {
+                        break;
+                    }
+                    final File file = new File(destination + File.separator + entry.getName());
+                    executor.execute(new Runnable() {
+                        @Override public void run () {
+                            if (error.get() == null) {
+                                try {
+                                    extract(zip, entry, file);
+                                } catch (IOException ex) {
+                                    error.compareAndSet(null, ex);
+                                }
+                            }
+                        }
+                    });
+                }
+            } finally {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (error.get() != null) {
+                throw error.get();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Writes one entry to the given file. The file's directory must already exist.
+     */
+    protected static void extract (ZipFile zip, ZipEntry entry, File file) throws IOException
+    {
+        InputStream input = zip.getInputStream(entry);
+        try {
+            // the pooled copy sizes its buffer from the entry's remaining uncompressed bytes
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                StreamUtils.copy(input, output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Extracts the entries one at a time while reading through the archive. Unlike unzip(), this
+     * does not need the archive's central directory.
+     */
+    public static void unzipStream (String zipFile, String destination)
+        throws FileNotFoundException, IOException
     {
         FileInputStream zipStream = new FileInputStream(zipFile);
         BufferedInputStream bufferStream = new BufferedInputStream(zipStream);
@@ -0,0 +1,344 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.util;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Replaces any number of literal strings in a single pass over the text, using an Aho-Corasick
+ * automaton. The time taken per line depends on the length of the line, not on how many strings
+ * are being replaced, so dictionaries of thousands of entries are as cheap to apply as one.
+ * <p>
+ * Where matches overlap, the one that starts first wins, and of those starting at the same
+ * place, the longest. Replaced text is not matched again. Once built, the automaton can be used
+ * by several threads at once; adding a key makes it rebuild on next use.
+ */
+public class AhoCorasick
+{
+    protected static final int ROOT = 0;
+
+    protected static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * Transitions out of the root, indexed by char, with zero meaning none.
+     */
+    protected int[] _rootNext = new int[Character.MAX_VALUE + 1];
+
+    /**
+     * Transitions out of every other state, as an open addressing hash table keyed on the state
+     * and the char. A key of zero is an empty slot; the root's transitions are never stored here.
+     */
+    protected long[] _edgeKeys = new long[1024];
+
+    protected int[] _edgeTargets = new int[1024];
+
+    protected int _edgeCount;
+
+    /**
+     * Each state's children, as a linked list through _nextSibling, for building the failure
+     * links.
+     */
+    protected int[] _firstChild = new int[256];
+
+    protected int[] _nextSibling = new int[256];
+
+    protected int[] _depth = new int[256];
+
+    /**
+     * The state to fall back to when there is no transition, the longest proper suffix of this
+     * state that is also a prefix of some key.
+     */
+    protected int[] _fail = new int[256];
+
+    /**
+     * The char on the transition into each state.
+     */
+    protected char[] _edgeChar = new char[256];
+
+    /**
+     * The key that ends at each state, or -1 if none does.
+     */
+    protected int[] _ownKey = new int[256];
+
+    /**
+     * The longest key that is a suffix of each state, its own or one reached through the
+     * failure links, or -1 if there is none.
+     */
+    protected int[] _key = new int[256];
+
+    protected int _stateCount = 1;
+
+    protected String[] _replacements = new String[16];
+
+    protected int[] _keyLengths = new int[16];
+
+    protected int _keyCount;
+
+    protected volatile boolean _built;
+
+    public AhoCorasick ()
+    {
+        Arrays.fill(_ownKey, -1);
+    }
+
+    public AhoCorasick (Map<String, String> replacements)
+    {
+        this();
+        for (Map.Entry<String, String> entry : replacements.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds a string to look for, and what to replace it with. Adding the same key again changes
+     * its replacement.
+     */
+    public synchronized void add (String key, String replacement)
+    {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Can not replace an empty string.");
+        }
+
+        int state = ROOT;
+        for (int i = 0; i < key.length(); i++) {
+            char ch = key.charAt(i);
+            int next = next(state, ch);
+            if (next == ROOT) {
+                next = addState(state, ch);
+            }
+            state = next;
+        }
+
+        if (_ownKey[state] < 0) {
+            if (_keyCount == _replacements.length) {
+                _replacements = Arrays.copyOf(_replacements, _keyCount * 2);
+                _keyLengths = Arrays.copyOf(_keyLengths, _keyCount * 2);
+            }
+            _keyLengths[_keyCount] = key.length();
+            _ownKey[state] = _keyCount++;
+        }
+        _replacements[_ownKey[state]] = replacement;
+        _built = false;
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public int size ()
+    {
+        return _keyCount;
+    }
+
+    /**
+     * Returns the text with all keys replaced. If nothing matches, the text itself is returned.
+     */
+    public String replace (String text)
+    {
+        StringBuilder result = new StringBuilder();
+        return (replace(text, result) == 0) ? text : result.toString();
+    }
+
+    /**
+     * Appends the text, with all keys replaced, to the result. Nothing is appended if there are
+     * no matches.
+     *
+     * @return the number of replacements made.
+     */
+    public int replace (CharSequence text, StringBuilder result)
+    {
+        if (!_built) {
+            build();
+        }
+
+        int count = 0;
+        // everything before this has been appended to the result
+        int written = 0;
+        int state = ROOT;
+        // the best match so far, which one starting earlier could still beat
+        int matchStart = -1;
+        int matchEnd = -1;
+        int matchKey = -1;
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            state = step(state, text.charAt(i++));
+
+            int key = _key[state];
+            if (key >= 0) {
+                int start = i - _keyLengths[key];
+                if (matchKey < 0 || start < matchStart) {
+                    matchStart = start;
+                    matchEnd = i;
+                    matchKey = key;
+                } else if (start == matchStart) {
+                    matchEnd = i;
+                    matchKey = key;
+                }
+            }
+
+            // once every match still in progress starts after the best one, it has won
+            if (matchKey >= 0 && (i - _depth[state] > matchStart || i == length)) {
+                if (count == 0) {
+                    result.ensureCapacity(length + 16);
+                }
+                result.append(text, written, matchStart).append(_replacements[matchKey]);
+                written = i = matchEnd;
+                state = ROOT;
+                matchKey = -1;
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            result.append(text, written, length);
+        }
+        return count;
+    }
+
+    /**
+     * Follows the transition for the given char, falling back along the failure links when there
+     * is none.
+     */
+    protected int step (int state, char ch)
+    {
+        while (state != ROOT) {
+            int next = next(state, ch);
+            if (next != ROOT) {
+                return next;
+            }
+            state = _fail[state];
+        }
+        return _rootNext[ch];
+    }
+
+    /**
+     * Returns the state reached from the given one by the given char, or the root if there is
+     * no such transition.
+     */
+    protected int next (int state, char ch)
+    {
+        if (state == ROOT) {
+            return _rootNext[ch];
+        }
+        long key = edgeKey(state, ch);
+        int mask = _edgeKeys.length - 1;
+        for (int slot = hash(key) & mask; _edgeKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (_edgeKeys[slot] == key) {
+                return _edgeTargets[slot];
+            }
+        }
+        return ROOT;
+    }
+
+    protected int addState (int parent, char ch)
+    {
+        if (_stateCount == _depth.length) {
+            int capacity = _stateCount * 2;
+            _firstChild = Arrays.copyOf(_firstChild, capacity);
+            _nextSibling = Arrays.copyOf(_nextSibling, capacity);
+            _depth = Arrays.copyOf(_depth, capacity);
+            _fail = Arrays.copyOf(_fail, capacity);
+            _edgeChar = Arrays.copyOf(_edgeChar, capacity);
+            _ownKey = Arrays.copyOf(_ownKey, capacity);
+            Arrays.fill(_ownKey, _stateCount, capacity, -1);
+            _key = Arrays.copyOf(_key, capacity);
+        }
+
+        int state = _stateCount++;
+        _depth[state] = _depth[parent] + 1;
+        _edgeChar[state] = ch;
+        _nextSibling[state] = _firstChild[parent];
+        _firstChild[parent] = state;
+
+        if (parent == ROOT) {
+            _rootNext[ch] = state;
+        } else {
+            if (_edgeCount + 1 > _edgeKeys.length * LOAD_FACTOR) {
+                resizeEdges();
+            }
+            putEdge(edgeKey(parent, ch), state);
+            _edgeCount++;
+        }
+        return state;
+    }
+
+    protected static long edgeKey (int state, char ch)
+    {
+        return ((long) state << 16) | ch;
+    }
+
+    protected static int hash (long key)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    protected void putEdge (long key, int target)
+    {
+        int mask = _edgeKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (_edgeKeys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        _edgeKeys[slot] = key;
+        _edgeTargets[slot] = target;
+    }
+
+    protected void resizeEdges ()
+    {
+        long[] keys = _edgeKeys;
+        int[] targets = _edgeTargets;
+        _edgeKeys = new long[keys.length * 2];
+        _edgeTargets = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                putEdge(keys[i], targets[i]);
+            }
+        }
+    }
+
+    /**
+     * Sets the failure links, breadth first, and passes each state's longest key on to the
+     * states that fail to it.
+     */
+    protected synchronized void build ()
+    {
+        if (_built) {
+            return;
+        }
+
+        _key[ROOT] = -1;
+        int[] queue = new int[_stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int child = _firstChild[ROOT]; child != ROOT; child = _nextSibling[child]) {
+            _fail[child] = ROOT;
+            _key[child] = _ownKey[child];
+            queue[tail++] = child;
+        }
+
+        while (head < tail) {
+            int state = queue[head++];
+            for (int child = _firstChild[state]; child != ROOT; child = _nextSibling[child]) {
+                _fail[child] = step(_fail[state], _edgeChar[child]);
+                _key[child] = (_ownKey[child] >= 0) ? _ownKey[child] : _key[_fail[child]];
+                queue[tail++] = child;
+            }
+        }
+        _built = true;
+    }
+}
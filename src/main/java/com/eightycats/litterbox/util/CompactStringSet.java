@@ -0,0 +1,450 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A memory efficient set of Strings. Members are stored as UTF-8 bytes, back to back, in large
+ * byte array pages, and looked up through an open addressing hash table of longs. Each slot in
+ * the table packs the page and offset of a member along with some of its hash bits. That works
+ * out to well under 20 bytes of overhead per member, instead of the 80 or so of a HashSet.
+ * <p>
+ * Iteration is in insertion order, and creates a new String for each member. Members can not be
+ * removed, other than by clearing the whole set. This class is not thread safe.
+ */
+public class CompactStringSet extends AbstractSet<String>
+{
+    protected static final int PAGE_BITS = 20;
+
+    /**
+     * The size of each page. Members bigger than this get a page of their own.
+     */
+    protected static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    protected static final int PAGE_INDEX_BITS = 24;
+
+    /**
+     * Slots store the page index plus one, so that a slot of zero means empty.
+     */
+    protected static final long PAGE_INDEX_MASK = (1L << PAGE_INDEX_BITS) - 1;
+
+    protected static final int HASH_SHIFT = PAGE_BITS + PAGE_INDEX_BITS;
+
+    protected static final int HASH_BITS = 64 - HASH_SHIFT;
+
+    protected static final float LOAD_FACTOR = 0.75f;
+
+    protected static final int MAX_CAPACITY = 1 << 30;
+
+    protected byte[][] _pages = new byte[16][];
+
+    /**
+     * Number of bytes used in each page.
+     */
+    protected int[] _used = new int[16];
+
+    protected int _pageCount;
+
+    protected long[] _slots;
+
+    protected int _size;
+
+    /**
+     * Bumped whenever the set changes.
+     */
+    protected int _version;
+
+    /**
+     * Reusable buffer for encoding Strings.
+     */
+    protected byte[] _scratch = new byte[256];
+
+    public CompactStringSet ()
+    {
+        this(1024);
+    }
+
+    public CompactStringSet (int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        _slots = new long[capacity];
+    }
+
+    @Override
+    public int size ()
+    {
+        return _size;
+    }
+
+    @Override
+    public boolean add (String member)
+    {
+        int length = encode(member);
+        return add(_scratch, 0, length);
+    }
+
+    /**
+     * Adds a member given as UTF-8 bytes, without creating a String.
+     */
+    public boolean add (byte[] utf8, int offset, int length)
+    {
+        int hash = hash(utf8, offset, length);
+        int index = find(utf8, offset, length, hash);
+        if (index >= 0) {
+            return false;
+        }
+
+        if (_size + 1 > _slots.length * LOAD_FACTOR) {
+            resize();
+            index = find(utf8, offset, length, hash);
+        }
+        _slots[-index - 1] = (hashBits(hash) << HASH_SHIFT) | append(utf8, offset, length);
+        _size++;
+        _version++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll (Collection<? extends String> members)
+    {
+        if (!(members instanceof CompactStringSet)) {
+            return super.addAll(members);
+        }
+
+        // copy the raw bytes across rather than decoding and re-encoding them
+        CompactStringSet other = (CompactStringSet) members;
+        boolean changed = false;
+        for (int page = 0; page < other._pageCount; page++) {
+            byte[] bytes = other._pages[page];
+            int offset = 0;
+            while (offset < other._used[page]) {
+                int length = readLength(bytes, offset);
+                offset += lengthSize(length);
+                changed |= add(bytes, offset, length);
+                offset += length;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean contains (Object member)
+    {
+        if (!(member instanceof String)) {
+            return false;
+        }
+        int length = encode((String) member);
+        return contains(_scratch, 0, length);
+    }
+
+    /**
+     * Checks for a member given as UTF-8 bytes, without creating a String.
+     */
+    public boolean contains (byte[] utf8, int offset, int length)
+    {
+        return find(utf8, offset, length, hash(utf8, offset, length)) >= 0;
+    }
+
+    @Override
+    public void clear ()
+    {
+        _pages = new byte[16][];
+        _used = new int[16];
+        _pageCount = 0;
+        _slots = new long[16];
+        _size = 0;
+        _version++;
+    }
+
+    @Override
+    public Iterator<String> iterator ()
+    {
+        return new Iterator<String>() {
+            protected int _page;
+            protected int _offset;
+            protected int _expectedVersion = _version;
+
+            @Override public boolean hasNext () {
+                while (_page < _pageCount && _offset >= _used[_page]) {
+                    _page++;
+                    _offset = 0;
+                }
+                return _page < _pageCount;
+            }
+
+            @Override public String next () {
+                if (_expectedVersion != _version) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long address = ((long) (_page + 1) << PAGE_BITS) | _offset;
+                int length = readLength(_pages[_page], _offset);
+                _offset += lengthSize(length) + length;
+                return get(address);
+            }
+
+            @Override public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns roughly how many bytes of heap this set is using.
+     */
+    public long getMemoryUsage ()
+    {
+        long total = 8L * _slots.length;
+        for (int page = 0; page < _pageCount; page++) {
+            total += _pages[page].length;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the index of the slot holding the given bytes, or if they are not in the set, -1
+     * minus the index of the empty slot where they would go.
+     */
+    protected int find (byte[] utf8, int offset, int length, int hash)
+    {
+        int mask = _slots.length - 1;
+        long hashBits = hashBits(hash);
+        int index = hash & mask;
+        while (true) {
+            long slot = _slots[index];
+            if (slot == 0) {
+                return -index - 1;
+            }
+            if (slot >>> HASH_SHIFT == hashBits && equals(slot, utf8, offset, length)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    protected boolean equals (long slot, byte[] utf8, int offset, int length)
+    {
+        byte[] page = _pages[page(slot)];
+        int position = offset(slot);
+        if (readLength(page, position) != length) {
+            return false;
+        }
+        position += lengthSize(length);
+        for (int i = 0; i < length; i++) {
+            if (page[position + i] != utf8[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void resize ()
+    {
+        if (_slots.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Set is full.");
+        }
+        long[] old = _slots;
+        long[] slots = new long[old.length * 2];
+        int mask = slots.length - 1;
+        for (long slot : old) {
+            if (slot != 0) {
+                int index = hash(slot) & mask;
+                while (slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index] = slot;
+            }
+        }
+        _slots = slots;
+    }
+
+    /**
+     * Recomputes the hash of the member in the given slot.
+     */
+    protected int hash (long slot)
+    {
+        byte[] page = _pages[page(slot)];
+        int position = offset(slot);
+        int length = readLength(page, position);
+        return hash(page, position + lengthSize(length), length);
+    }
+
+    /**
+     * Copies the given bytes onto the end of the last page, and returns their address.
+     */
+    protected long append (byte[] utf8, int offset, int length)
+    {
+        int size = lengthSize(length) + length;
+        int page = _pageCount - 1;
+        if (page < 0 || _used[page] + size > _pages[page].length) {
+            page = addPage(Math.max(PAGE_SIZE, size));
+        }
+
+        byte[] bytes = _pages[page];
+        int position = _used[page];
+        long address = ((long) (page + 1) << PAGE_BITS) | position;
+        position = writeLength(bytes, position, length);
+        System.arraycopy(utf8, offset, bytes, position, length);
+        _used[page] = position + length;
+        return address;
+    }
+
+    protected int addPage (int size)
+    {
+        if (_pageCount == _pages.length) {
+            if (_pageCount >= PAGE_INDEX_MASK) {
+                throw new IllegalStateException("Set is full.");
+            }
+            byte[][] pages = new byte[_pageCount * 2][];
+            System.arraycopy(_pages, 0, pages, 0, _pageCount);
+            _pages = pages;
+            int[] used = new int[_pageCount * 2];
+            System.arraycopy(_used, 0, used, 0, _pageCount);
+            _used = used;
+        }
+        _pages[_pageCount] = new byte[size];
+        return _pageCount++;
+    }
+
+    /**
+     * Decodes the member at the given address.
+     */
+    protected String get (long address)
+    {
+        byte[] page = _pages[page(address)];
+        int position = offset(address);
+        int length = readLength(page, position);
+        return new String(page, position + lengthSize(length), length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the high bits of the hash, which get stored in the slot.
+     */
+    protected static long hashBits (int hash)
+    {
+        return hash >>> (32 - HASH_BITS);
+    }
+
+    protected static int page (long slot)
+    {
+        return (int) ((slot >>> PAGE_BITS) & PAGE_INDEX_MASK) - 1;
+    }
+
+    protected static int offset (long slot)
+    {
+        return (int) slot & (PAGE_SIZE - 1);
+    }
+
+    /**
+     * Encodes the given String as UTF-8 into the scratch buffer, and returns the number of bytes.
+     * Unpaired surrogates are encoded as '?', same as String.getBytes().
+     */
+    protected int encode (String text)
+    {
+        int length = text.length();
+        if (_scratch.length < length * 3) {
+            _scratch = new byte[length * 3];
+        }
+
+        byte[] bytes = _scratch;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            if (ch < 0x80) {
+                bytes[position++] = (byte) ch;
+            } else if (ch < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (ch >> 6));
+                bytes[position++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, text.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                bytes[position++] = '?';
+            } else {
+                bytes[position++] = (byte) (0xE0 | (ch >> 12));
+                bytes[position++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    protected static int hash (byte[] bytes, int offset, int length)
+    {
+        int hash = length;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // spread the bits, so that both the low bits (the table index) and the high bits (stored
+        // in the slot) vary
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Lengths are stored as variable length integers, 7 bits per byte.
+     */
+    protected static int readLength (byte[] bytes, int position)
+    {
+        int length = 0;
+        int shift = 0;
+        byte next;
+        do {
+            next = bytes[position++];
+            length |= (next & 0x7F) << shift;
+            shift += 7;
+        } while (next < 0);
+        return length;
+    }
+
+    protected static int writeLength (byte[] bytes, int position, int length)
+    {
+        while (length >= 0x80) {
+            bytes[position++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        bytes[position++] = (byte) length;
+        return position;
+    }
+
+    protected static int lengthSize (int length)
+    {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, for worker pools that should never keep the JVM running on their
+ * own, such as those of streams and sorts that are abandoned without being closed.
+ */
+public class DaemonThreadFactory
+    implements ThreadFactory
+{
+    protected String _name;
+
+    protected AtomicInteger _count = new AtomicInteger();
+
+    /**
+     * @param name
+     *            the threads are named this plus a dash and a number.
+     */
+    public DaemonThreadFactory (String name)
+    {
+        _name = name;
+    }
+
+    @Override
+    public Thread newThread (Runnable task)
+    {
+        Thread thread = new Thread(task, _name + "-" + _count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Matthew A Jensen <eightycats@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.eightycats.litterbox.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link CompactStringSet} that iterates over its members in sorted order. Members are sorted
+ * by their UTF-8 bytes, which is code point order. That only differs from String.compareTo() for
+ * characters outside the Basic Multilingual Plane.
+ * <p>
+ * The sort happens on the first iteration after the set changes. It sorts an array of member
+ * addresses, so it needs 16 bytes of extra heap per member while it runs.
+ */
+public class SortedCompactStringSet extends CompactStringSet
+{
+    /**
+     * Member addresses in sorted order.
+     */
+    protected long[] _sorted;
+
+    /**
+     * The set version that the sorted addresses are from.
+     */
+    protected int _sortedVersion = -1;
+
+    public SortedCompactStringSet ()
+    {
+        super();
+    }
+
+    public SortedCompactStringSet (int expectedSize)
+    {
+        super(expectedSize);
+    }
+
+    @Override
+    public Iterator<String> iterator ()
+    {
+        final long[] sorted = sort();
+        final int expectedVersion = _version;
+        return new Iterator<String>() {
+            protected int _index;
+
+            @Override public boolean hasNext () {
+                return _index < _size;
+            }
+
+            @Override public String next () {
+                if (expectedVersion != _version) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(sorted[_index++]);
+            }
+
+            @Override public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void clear ()
+    {
+        super.clear();
+        _sorted = null;
+    }
+
+    /**
+     * Returns the member addresses in sorted order, sorting them if anything has changed.
+     */
+    protected long[] sort ()
+    {
+        if (_sortedVersion != _version) {
+            // let go of the old order before allocating the new one
+            _sorted = null;
+            long[] addresses = new long[_size];
+            int count = 0;
+            for (int page = 0; page < _pageCount; page++) {
+                int offset = 0;
+                while (offset < _used[page]) {
+                    addresses[count++] = ((long) (page + 1) << PAGE_BITS) | offset;
+                    int length = readLength(_pages[page], offset);
+                    offset += lengthSize(length) + length;
+                }
+            }
+            mergeSort(addresses, new long[count], 0, count);
+            _sorted = addresses;
+            _sortedVersion = _version;
+        }
+        return _sorted;
+    }
+
+    /**
+     * Sorts the given range of addresses, using the scratch array for merging.
+     */
+    protected void mergeSort (long[] addresses, long[] scratch, int from, int to)
+    {
+        if (to - from < 16) {
+            // insertion sort small ranges
+            for (int i = from + 1; i < to; i++) {
+                long address = addresses[i];
+                int j = i - 1;
+                while (j >= from && compare(addresses[j], address) > 0) {
+                    addresses[j + 1] = addresses[j];
+                    j--;
+                }
+                addresses[j + 1] = address;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        mergeSort(addresses, scratch, from, middle);
+        mergeSort(addresses, scratch, middle, to);
+        if (compare(addresses[middle - 1], addresses[middle]) <= 0) {
+            // already in order
+            return;
+        }
+
+        System.arraycopy(addresses, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compare(scratch[left], scratch[right]) <= 0)) {
+                addresses[i] = scratch[left++];
+            } else {
+                addresses[i] = scratch[right++];
+            }
+        }
+    }
+
+    /**
+     * Compares the UTF-8 bytes of two members as unsigned values.
+     */
+    protected int compare (long address1, long address2)
+    {
+        byte[] page1 = _pages[page(address1)];
+        int position1 = offset(address1);
+        int length1 = readLength(page1, position1);
+        position1 += lengthSize(length1);
+
+        byte[] page2 = _pages[page(address2)];
+        int position2 = offset(address2);
+        int length2 = readLength(page2, position2);
+        position2 += lengthSize(length2);
+
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            int diff = (page1[position1 + i] & 0xFF) - (page2[position2 + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length1 - length2;
+    }
+}